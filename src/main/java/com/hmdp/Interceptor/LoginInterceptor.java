@@ -7,7 +7,7 @@ import com.hmdp.entity.User;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.UserHolder;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -18,7 +18,7 @@ import java.util.concurrent.TimeUnit;
 /**
  * @DESCRIPTION 登录拦截器, 验证登录信息, 把用户信息放入到threadlocal中
  **/
-public class LoginInterceptor implements HandlerInterceptor {
+public class LoginInterceptor implements AsyncHandlerInterceptor {
 
 
 
@@ -38,6 +38,14 @@ public class LoginInterceptor implements HandlerInterceptor {
         // 手动释放map中的值
         UserHolder.removeUser();
 
-        HandlerInterceptor.super.afterCompletion(request, response, handler, ex);
+        AsyncHandlerInterceptor.super.afterCompletion(request, response, handler, ex);
+    }
+
+    /**
+     * 异步请求第一次分派结束, 同 TokenRefreshInterceptor
+     **/
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        UserHolder.removeUser();
     }
 }
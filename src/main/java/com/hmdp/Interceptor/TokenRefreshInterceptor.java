@@ -6,7 +6,7 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.UserHolder;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -16,7 +16,7 @@ import java.util.concurrent.TimeUnit;
 /**
  * @DESCRIPTION 登录拦截器, 验证登录信息, 把用户信息放入到threadlocal中
  **/
-public class TokenRefreshInterceptor implements HandlerInterceptor {
+public class TokenRefreshInterceptor implements AsyncHandlerInterceptor {
 
     StringRedisTemplate stringRedisTemplate;        // ∵这个类没有交给spring管理,所以不能自动注入, 得自己通过构造方法传入
 
@@ -26,6 +26,9 @@ public class TokenRefreshInterceptor implements HandlerInterceptor {
 
     @Override
     public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        // 先清掉线程上残留的用户 (线程是复用的, 不能依赖上一个请求一定清理干净了)
+        UserHolder.removeUser();
+
         //  1. 获取token (在请求头中)
         String token = request.getHeader("authorization");
 
@@ -62,6 +65,15 @@ public class TokenRefreshInterceptor implements HandlerInterceptor {
         // 手动释放map中的值
         UserHolder.removeUser();
 
-        HandlerInterceptor.super.afterCompletion(request, response, handler, ex);
+        AsyncHandlerInterceptor.super.afterCompletion(request, response, handler, ex);
+    }
+
+    /**
+     * 异步请求 (返回DeferredResult等) 第一次分派结束时不会调用afterCompletion, 而是调用这个方法,
+     * 这里不清掉的话, 这个tomcat线程处理的下一个请求会带着上一个用户的登录信息
+     **/
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        UserHolder.removeUser();
     }
 }
@@ -0,0 +1,25 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.HotKeyDetector;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.List;
+
+/**
+ * 查看当前的热点key  GET /actuator/hotkeys (管理端口, 只能本机访问)
+ **/
+@Component
+@Endpoint(id = "hotkeys")
+public class HotKeyEndpoint {
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @ReadOperation
+    public List<HotKeyDetector.HotKey> hotKeys() {
+        return hotKeyDetector.topKeys();
+    }
+}
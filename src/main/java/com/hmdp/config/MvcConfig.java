@@ -27,7 +27,9 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/upload/**",
                         "/blog/hot",
                         "/user/code",
-                        "/user/login"
+                        "/user/login",
+                        // 监控端点在只监听本机的管理端口上 (management.server), 管理端口也会用到这里的拦截器
+                        "/actuator/**"
                 )
                 .order(1);          // order越小, 越先执行
 
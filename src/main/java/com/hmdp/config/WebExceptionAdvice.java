@@ -1,10 +1,15 @@
 package com.hmdp.config;
 
 import com.hmdp.dto.Result;
+import com.hmdp.utils.SeckillThrottledException;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.RestControllerAdvice;
 
+import javax.servlet.http.HttpServletResponse;
+
 @Slf4j
 @RestControllerAdvice
 public class WebExceptionAdvice {
@@ -15,4 +20,12 @@ public class WebExceptionAdvice {
         log.error(e.toString(), e);
         return Result.fail("服务器异常");
     }
+
+    // 秒杀限流: 429, 告诉客户端多少秒以后再试
+    @ExceptionHandler(SeckillThrottledException.class)
+    public Result handleSeckillThrottled(SeckillThrottledException e, HttpServletResponse response) {
+        response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+        response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf((e.getRetryAfterMillis() + 999) / 1000));
+        return Result.fail(e.getMessage());
+    }
 }
@@ -6,10 +6,20 @@ import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TTL;
+import static com.hmdp.utils.RedisConstants.LOCK_SHOP_KEY;
 
 /**
  * <p>
@@ -26,6 +36,9 @@ public class ShopController {
     @Resource
     public IShopService shopService;
 
+    @Resource
+    private CacheClient cacheClient;
+
     /**
      * 根据id查询商铺信息
      * @param id 商铺id
@@ -74,12 +87,17 @@ public class ShopController {
             @RequestParam("typeId") Integer typeId,
             @RequestParam(value = "current", defaultValue = "1") Integer current
     ) {
-        // 根据类型分页查询
+        // 根据类型分页查询  (只查id)
         Page<Shop> page = shopService.query()
+                .select("id")
                 .eq("type_id", typeId)
                 .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
+        // 店铺详情批量从缓存取, 没命中的一次性查数据库
+        List<Long> ids = page.getRecords().stream().map(Shop::getId).collect(Collectors.toList());
+        Map<Long, Shop> shops = cacheClient.queryBatchWithLogicalExpire(
+                CACHE_SHOP_KEY, ids, Shop.class, LOCK_SHOP_KEY, shopService::listByIds, Shop::getId, CACHE_SHOP_TTL, TimeUnit.MINUTES);
         // 返回数据
-        return Result.ok(page.getRecords());
+        return Result.ok(new ArrayList<>(shops.values()));
     }
 
     /**
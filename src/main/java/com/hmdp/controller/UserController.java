@@ -7,6 +7,7 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.UserInfo;
 import com.hmdp.service.IUserInfoService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.IdBloomFilters;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.bind.annotation.*;
@@ -33,6 +34,9 @@ public class UserController {
     @Resource
     private IUserInfoService userInfoService;
 
+    @Resource
+    private IdBloomFilters idBloomFilters;
+
     /**
      * 发送手机验证码
      */
@@ -73,6 +77,10 @@ public class UserController {
 
     @GetMapping("/info/{id}")
     public Result info(@PathVariable("id") Long userId){
+        // 不存在的用户直接返回
+        if (!idBloomFilters.mightContain(IdBloomFilters.USER, userId)) {
+            return Result.ok();
+        }
         // 查询详情
         UserInfo info = userInfoService.getById(userId);
         if (info == null) {
@@ -18,4 +18,6 @@ public interface IShopService extends IService<Shop> {
     Result queryById(Long id);
 
     Result update(Shop shop);
+
+    void warmUpShopCache();
 }
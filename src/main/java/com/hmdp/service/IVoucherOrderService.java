@@ -3,6 +3,7 @@ package com.hmdp.service;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
+import org.springframework.web.context.request.async.DeferredResult;
 
 /**
  * <p>
@@ -16,4 +17,6 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long id);
 
+    DeferredResult<Result> queryOrderStatus(Long orderId, Long timeoutSeconds);
+
 }
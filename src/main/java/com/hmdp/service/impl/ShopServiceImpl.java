@@ -8,8 +8,10 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdBloomFilters;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisData;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -42,11 +44,18 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     CacheClient cacheClient;
 
+    @Resource
+    IdBloomFilters idBloomFilters;
+
     /**
      * @DESCRIPTION 根据商户id 查询数据库  (加入redis作为缓存)
      **/
     @Override
     public Result queryById(Long id) {
+        // 【布隆过滤器】 一定不存在的id直接返回, 不查redis也不查数据库
+        if (!idBloomFilters.mightContain(IdBloomFilters.SHOP, id))
+            return Result.fail("店铺不存在!");
+
         // 防止【缓存穿透】查店铺数据
         //Shop shop = queryWithPassThrough(id);
 
@@ -58,9 +67,15 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         //        cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, (id1) -> getById(id1), CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
         // 封装好的【逻辑过期 解决 缓存击穿】
+        //Shop shop =
+        //        cacheClient
+        //                .queryWithLogicalExpire
+        //                        (CACHE_SHOP_KEY, id, Shop.class, LOCK_SHOP_KEY, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+
+        // 【逻辑过期 + 提前刷新】 热点店铺在过期前就被刷新, 不用等过期后再抢锁
         Shop shop =
                 cacheClient
-                        .queryWithLogicalExpire
+                        .queryWithRefreshAhead
                                 (CACHE_SHOP_KEY, id, Shop.class, LOCK_SHOP_KEY, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
         return Result.ok(shop);
@@ -209,6 +224,33 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
     }*/
 
+    /**
+     * 【缓存预热】 把所有店铺按【逻辑过期】格式写入redis
+     * 过期时间在 [CACHE_SHOP_TTL, 2 * CACHE_SHOP_TTL] 里错开, 不会同一时间集中过期重建
+     **/
+    @Override
+    public void warmUpShopCache() {
+        long current = 1;
+        Page<Shop> page;
+        do {
+            page = page(new Page<>(current++, 1000));
+            cacheClient.warmUp(CACHE_SHOP_KEY, page.getRecords(), Shop::getId,
+                    CACHE_SHOP_TTL, CACHE_SHOP_TTL, TimeUnit.MINUTES, true);
+        } while (page.hasNext());
+    }
+
+    /**
+     * 新增商铺, 同时加入布隆过滤器
+     **/
+    @Override
+    public boolean save(Shop shop) {
+        boolean success = super.save(shop);
+        if (success) {
+            idBloomFilters.add(IdBloomFilters.SHOP, shop.getId());
+        }
+        return success;
+    }
+
     /**
      * 修改商铺信息
      **/
@@ -221,9 +263,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         // 修改数据库
         updateById(shop);
 
-        // 删除缓存
+        // 删除缓存 (redis + 本地缓存)
         // 这个方法删除失败会抛出异常的, 上面加了@Transactional事务. 抛出异常, 那就全部执行成败
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+        cacheClient.delete(CACHE_SHOP_KEY + id);
 
         return null;
     }
@@ -11,6 +11,7 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.IdBloomFilters;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RegexUtils;
 import io.lettuce.core.RedisURI;
@@ -46,6 +47,9 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Autowired
     StringRedisTemplate stringRedisTemplate;
 
+    @Autowired
+    IdBloomFilters idBloomFilters;
+
     @Override
     public Result sendCode(String phone, HttpSession session) {
         // 1.效验手机号
@@ -120,6 +124,8 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         user.setNickName(USER_NICK_NAME_PREFIX + RandomUtil.randomString(10));
 
         save(user);
+        // 新用户加入布隆过滤器
+        idBloomFilters.add(IdBloomFilters.USER, user.getId());
         return user;
     }
 }
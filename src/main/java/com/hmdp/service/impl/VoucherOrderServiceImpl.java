@@ -3,30 +3,53 @@ package com.hmdp.service.impl;
 import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.IdBloomFilters;
+import com.hmdp.utils.LuaScriptRegistry;
+import com.hmdp.utils.OrderResultStore;
+import com.hmdp.utils.OrderStreamMonitor;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillAdmission;
+import com.hmdp.utils.SeckillThrottledException;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SeckillWindows;
+import com.hmdp.utils.SoldOutFlags;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.core.io.ClassPathResource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import java.time.LocalDateTime;
+import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -46,43 +69,156 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private RedisIdWorker redisIdWorker;        // 生成全局唯一id
 
     @Resource
-    private RedissonClient redissonClient;      // 使用redisson  (加锁
+    private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private IdBloomFilters idBloomFilters;
 
-    // lua脚本读入
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;    // 脚本语言读入
-    static {
-        // 提前将脚本的文件给读出来
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
-    }
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @Resource
+    private OrderStreamMonitor orderStreamMonitor;
+
+    @Resource
+    private SoldOutFlags soldOutFlags;
+
+    @Resource
+    private OrderResultStore orderResultStore;
+
+    @Value("${hmdp.seckill.order.status-max-wait-seconds:30}")
+    private long statusMaxWaitSeconds;  // 查询订单结果最多等多久
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private SeckillWindows seckillWindows;
+
+    @Resource
+    private SeckillAdmission seckillAdmission;
 
-    // 创建单线程的线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    // lua脚本 (启动时已经加载到redis, 执行时走EVALSHA)
+    @Resource
+    private LuaScriptRegistry luaScriptRegistry;
+
+    // 处理订单的消费者线程池, 每个线程是消息队列消费者组里的一个消费者
+    private ExecutorService seckillOrderExecutor;
+
+    @Value("${hmdp.seckill.order.consumers:4}")
+    private int consumerCount;          // 每个节点开几个消费者
+
+    @Value("${hmdp.seckill.order.batch-size:50}")
+    private int batchSize;              // 每次最多读几条订单
+
+    @Value("${hmdp.seckill.order.reclaim-interval-seconds:30}")
+    private long reclaimIntervalSeconds;    // 多久检查一次pending-list
+
+    @Value("${hmdp.seckill.order.reclaim-min-idle-seconds:60}")
+    private long reclaimMinIdleSeconds;     // 消息投递后多久没确认, 就认为消费者挂了, 由别人接手
+
+    @Value("${hmdp.seckill.order.max-deliveries:5}")
+    private long maxDeliveries;             // 投递超过这么多次还没处理成功, 转入死信队列
+
+    @Value("${hmdp.seckill.order.reconcile-interval-seconds:60}")
+    private long reconcileIntervalSeconds;  // 多久对账一次 (补发没发出去的订单消息)
+
+    @Value("${hmdp.seckill.order.reconcile-min-age-seconds:60}")
+    private long reconcileMinAgeSeconds;    // 下单后多久消息还没发出去, 就认为发送的进程挂了
+
+    @Resource
+    private TransactionTemplate transactionTemplate;
+
+    private volatile boolean running = true;
+
+    // 定时接手超时未确认消息、对账的线程
+    private final ScheduledExecutorService reclaimExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "seckill-order-reclaim");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private Consumer reclaimConsumer;
 
     @PostConstruct      // 在类实例化后立即执行
     private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());   // 实例化后就直接开一个线程去执行下面的VoucherOrderHandler方法
+        // 一人一单靠唯一索引保证 (INSERT IGNORE), 老库没有这个索引就不能启动
+        checkUserVoucherIndex();
+
+        // 消费者组不存在就创建 (XGROUP CREATE stream.orders g1 0 MKSTREAM)
+        createGroupIfAbsent();
+
+        // 消费者名字: 主机名 + 进程号 + 序号, 多个节点、多个线程都不重复
+        String nodeName = ManagementFactory.getRuntimeMXBean().getName();
+        String consumerPrefix = nodeName + "-c";
+        seckillOrderExecutor = Executors.newFixedThreadPool(consumerCount, new ThreadFactory() {
+            private final AtomicInteger index = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "seckill-order-" + index.incrementAndGet());
+            }
+        });
+        for (int i = 1; i <= consumerCount; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler(consumerPrefix + i));   // 实例化后就直接开线程去执行下面的VoucherOrderHandler方法
+        }
         /**
          * execute()方法用于提交不需要返回值的任务，所以无法判断任务是否被线程池执行成功与否；
          * submit()方法用于提交需要返回值的任务,线程池会返回一个 Future 类型的对象
          **/
+
+        // 接手其他(挂掉的)消费者没确认的消息
+        reclaimConsumer = Consumer.from(STREAM_ORDERS_GROUP, nodeName + "-reclaim");
+        reclaimExecutor.scheduleWithFixedDelay(this::reclaimPendingOrders,
+                reclaimIntervalSeconds, reclaimIntervalSeconds, TimeUnit.SECONDS);
+
+        // 补发扣了库存但没发出去的订单消息
+        reclaimExecutor.scheduleWithFixedDelay(this::reconcilePendingOrders,
+                reconcileIntervalSeconds, reconcileIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        // 不再读新消息, 等手上的这批处理完 (没ack的下次启动从pending-list里再处理)
+        running = false;
+        reclaimExecutor.shutdown();
+        seckillOrderExecutor.shutdown();
+        seckillOrderExecutor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    private void checkUserVoucherIndex() {
+        if (getBaseMapper().countUserVoucherUniqueIndexes() == 0) {
+            throw new IllegalStateException(
+                    "tb_voucher_order 缺少唯一索引 (user_id, voucher_id), 无法保证一人一单, 请先执行 db/upgrade_voucher_order_uk.sql");
+        }
+    }
+
+    private void createGroupIfAbsent() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    STREAM_ORDERS_KEY.getBytes(StandardCharsets.UTF_8), STREAM_ORDERS_GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            // BUSYGROUP 说明已经创建过了
+            log.debug("消费者组已存在: " + e.getMessage());
+        }
     }
 
     private class VoucherOrderHandler implements Runnable {
 
+        private final Consumer consumer;
+
+        VoucherOrderHandler(String consumerName) {
+            this.consumer = Consumer.from(STREAM_ORDERS_GROUP, consumerName);
+        }
+
         @Override
         public void run() {
-            while (true) {
+            while (running) {
                 try {
-                    // 1.获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS stream.orders >
+                    // 1.获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 50 BLOCK 2000 STREAMS stream.orders >
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(     // 这里的read()对应redis的XREADGROUP方法
-                            Consumer.from("g1", "c1"),              // GROUP g1 c1
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),         // COUNT 1 BLOCK 2000
-                            StreamOffset.create("stream.orders", ReadOffset.lastConsumed())   // STREAMS stream.orders
+                            consumer,                                  // GROUP g1 c1
+                            StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(2)),         // COUNT 50 BLOCK 2000
+                            StreamOffset.create(STREAM_ORDERS_KEY, ReadOffset.lastConsumed())   // STREAMS stream.orders >
                     );
 
                     // 2.判断订单信息是否为空
@@ -91,18 +227,8 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                         continue;
                     }
 
-                    // 解析数据
-                    // 👇注意这里是三个变量的pair
-                    MapRecord<String, Object, Object> record = list.get(0);     // 由于read()中设置了COUNT 1, 一次只读一条数据
-                                                                                // ∴这里的list中只有一个数据
-                    Map<Object, Object> value = record.getValue();  // 键值对
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-
-                    // 3.创建订单
-                    createVoucherOrder(voucherOrder);
-
-                    // 4.确认消息 XACK  根据redis自动生成的id来发送确认
-                    stringRedisTemplate.opsForStream().acknowledge("s1", "g1", record.getId());
+                    // 3.一批订单一起写数据库, 4.整批确认消息 XACK
+                    handleRecords(list);
 
                 } catch (Exception e) {
                     /**
@@ -116,82 +242,248 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         }
 
         private void handlePendingList() {
-            while (true) {
+            while (running) {
                 try {
-                    // 1.获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS stream.orders 0
+                    // 1.获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 50 STREAMS stream.orders 0
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create("stream.orders", ReadOffset.from("0"))  // 这里的0代表了从pendinglist中取第一个数据
+                            consumer,
+                            StreamReadOptions.empty().count(batchSize),
+                            StreamOffset.create(STREAM_ORDERS_KEY, ReadOffset.from("0"))  // 这里的0代表了从pendinglist中取第一个数据
                     );
                     // 2.判断订单信息是否为空
                     if (list == null || list.isEmpty()) {
                         // 如果为null，说明没有异常消息，结束循环
                         break;
                     }
-                    // 解析数据
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // 3.创建订单
-                    createVoucherOrder(voucherOrder);
-                    // 4.确认消息 XACK
-                    stringRedisTemplate.opsForStream().acknowledge("s1", "g1", record.getId());
+                    // 3.创建订单 4.确认消息 XACK
+                    handleRecords(list);
                 } catch (Exception e) {
-                    // 如果又发生了异常,不用递归.  ∵这里是while(true), 死循环没事, 还会继续走
-                    log.error("处理订单异常", e);
+                    // 如果又发生了异常,不用递归, 也不在这里死循环重试 (一条坏消息会把这个消费者卡死)
+                    // 留在pending-list里, 由认领任务重试, 超过次数转入死信队列
+                    log.error("处理pending-list订单异常", e);
+                    break;
                 }
             }
         }
     }
 
     /**
-     * 根据voucherOrder订单信息  实际写数据库
-     * 使用redisson来加锁
+     * 【认领超时消息】 XPENDING 找出投递后超过reclaimMinIdleSeconds还没确认的消息:
+     * 1. 投递次数没超过maxDeliveries的, XCLAIM 到自己名下重新处理 (原来的消费者可能挂了)
+     * 2. 超过的, 转入死信队列 stream.orders.dlq 并确认掉, 不再重试
      **/
-    private void createVoucherOrder(VoucherOrder voucherOrder) {
-        Long userId = voucherOrder.getUserId();
-        Long voucherId = voucherOrder.getVoucherId();
-        // 创建锁对象
-        // 获得  可重入锁  !
-        RLock redisLock = redissonClient.getLock("lock:order:" + userId);
-        // 尝试获取锁
-        boolean isLock = redisLock.tryLock();
-        // 判断
-        if (!isLock) {
-            // 获取锁失败，直接返回失败或者重试
-            // 兜底 redis中通过lua脚本已经实现了一人一单的购买资格判断
-            log.error("不允许重复下单！");
+    private void reclaimPendingOrders() {
+        try {
+            Duration minIdle = Duration.ofSeconds(reclaimMinIdleSeconds);
+            PendingMessages pending = stringRedisTemplate.opsForStream()
+                    .pending(STREAM_ORDERS_KEY, STREAM_ORDERS_GROUP, Range.unbounded(), 100);
+
+            List<RecordId> toClaim = new ArrayList<>();
+            for (PendingMessage message : pending) {
+                if (message.getElapsedTimeSinceLastDelivery().compareTo(minIdle) < 0) {
+                    continue;
+                }
+                if (message.getTotalDeliveryCount() >= maxDeliveries) {
+                    deadLetter(message);
+                } else {
+                    toClaim.add(message.getId());
+                }
+            }
+
+            if (!toClaim.isEmpty()) {
+                // XCLAIM stream.orders g1 reclaim 60000 id...   (会把投递次数+1)
+                List<ByteRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                        connection.streamCommands().xClaim(STREAM_ORDERS_KEY.getBytes(StandardCharsets.UTF_8),
+                                STREAM_ORDERS_GROUP, reclaimConsumer.getName(),
+                                RedisStreamCommands.XClaimOptions.minIdle(minIdle).ids(toClaim.toArray(new RecordId[0]))));
+                if (claimed != null && !claimed.isEmpty()) {
+                    log.warn("认领了" + claimed.size() + "条超时未确认的订单消息");
+                    handleRecords(claimed.stream()
+                            .map(record -> record.deserialize(RedisSerializer.string()))
+                            .collect(Collectors.toList()));
+                }
+            }
+
+            removeIdleConsumers();
+        } catch (Exception e) {
+            log.error("认领超时订单消息异常", e);
+        }
+    }
+
+    /**
+     * 转入死信队列, 带上原消息id、投递次数、最后的消费者, 方便人工排查
+     * 订单其实已经写进数据库了的 (比如事务提交后没来得及XACK就挂了), 直接确认并记为成功
+     **/
+    private void deadLetter(PendingMessage message) {
+        String id = message.getIdAsString();
+        List<MapRecord<String, Object, Object>> records =
+                stringRedisTemplate.opsForStream().range(STREAM_ORDERS_KEY, Range.closed(id, id));
+        Map<Object, Object> body = new HashMap<>();
+        if (records != null && !records.isEmpty()) {
+            body.putAll(records.get(0).getValue());
+        }
+        VoucherOrder order = body.containsKey("id") ? BeanUtil.fillBeanWithMap(body, new VoucherOrder(), true) : null;
+        if (order != null && order.getId() != null && getById(order.getId()) != null) {
+            stringRedisTemplate.opsForStream().acknowledge(STREAM_ORDERS_KEY, STREAM_ORDERS_GROUP, message.getId());
+            orderResultStore.save(order, OrderResultStore.SUCCESS, null);
+            log.warn("订单消息投递" + message.getTotalDeliveryCount() + "次未确认, 但订单已经写入数据库, 直接确认: " + id);
             return;
         }
+        body.put("originId", id);
+        body.put("deliveries", String.valueOf(message.getTotalDeliveryCount()));
+        body.put("consumer", message.getConsumerName());
+        stringRedisTemplate.opsForStream().add(STREAM_ORDERS_DLQ_KEY, body);
+        stringRedisTemplate.opsForStream().acknowledge(STREAM_ORDERS_KEY, STREAM_ORDERS_GROUP, message.getId());
+        if (order != null) {
+            orderResultStore.save(order, OrderResultStore.FAILED, "订单处理失败");
+        }
+        log.error("订单消息投递" + message.getTotalDeliveryCount() + "次仍未处理成功, 转入死信队列: " + id);
+    }
 
+    /**
+     * 消费者名字带进程号, 每次重启都会多出一批; 没有待处理消息并且一天没活动的删掉
+     **/
+    private void removeIdleConsumers() {
+        StreamInfo.XInfoConsumers consumers = stringRedisTemplate.opsForStream().consumers(STREAM_ORDERS_KEY, STREAM_ORDERS_GROUP);
+        consumers.forEach(consumer -> {
+            if (consumer.pendingCount() == 0 && consumer.idleTime().compareTo(Duration.ofDays(1)) > 0) {
+                stringRedisTemplate.opsForStream().deleteConsumer(STREAM_ORDERS_KEY,
+                        Consumer.from(STREAM_ORDERS_GROUP, consumer.consumerName()));
+            }
+        });
+    }
+
+    /**
+     * 处理一批消息: 解析订单 -> 批量写数据库 -> 整批XACK
+     * 整批失败时一条一条重试: 成功的确认掉, 失败的留在pending-list里,
+     * 由认领任务重试, 超过次数只有它自己进死信队列, 不会连累同一批的正常订单
+     **/
+    private void handleRecords(List<? extends MapRecord<String, ?, ?>> records) {
+        long begin = System.nanoTime();
         try {
-            // 5.1.查询订单
-            int count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();
-            // 5.2.判断是否存在
-            if (count > 0) {
-                // 用户已经购买过了
-                log.error("不允许重复下单！");
-                return;
+            handleBatch(records);
+        } catch (Exception e) {
+            log.error("批量处理" + records.size() + "条订单消息失败, 改为逐条处理", e);
+            for (MapRecord<String, ?, ?> record : records) {
+                try {
+                    handleBatch(Collections.singletonList(record));
+                } catch (Exception ex) {
+                    log.error("处理订单消息失败, 留在pending-list等待重试: " + record.getId(), ex);
+                }
+            }
+        }
+        orderStreamMonitor.recordBatch(System.nanoTime() - begin, records.size());
+    }
+
+    private void handleBatch(List<? extends MapRecord<String, ?, ?>> records) {
+        // 解析数据
+        List<VoucherOrder> orders = new ArrayList<>(records.size());
+        for (MapRecord<String, ?, ?> record : records) {
+            Map<?, ?> value = record.getValue();  // 键值对
+            orders.add(BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true));
+        }
+
+        // 创建订单 (已经写过的订单再写一次也是成功, 所以整批失败后逐条重试没问题)
+        createVoucherOrders(orders);
+
+        // 确认消息 XACK  根据redis自动生成的id来发送确认
+        RecordId[] ids = records.stream().map(MapRecord::getId).toArray(RecordId[]::new);
+        stringRedisTemplate.opsForStream().acknowledge(STREAM_ORDERS_KEY, STREAM_ORDERS_GROUP, ids);
+    }
+
+    /**
+     * 批量写订单: 按优惠券分组, 每组一个事务 一次批量插入(INSERT IGNORE) + 一次扣减库存(stock - n)
+     * 一人一单靠 tb_voucher_order 上的唯一索引(user_id, voucher_id) 保证, 不用加锁也不用先查
+     * 某组整体扣库存失败(库存不够整组扣), 这组退回到一单一单处理
+     **/
+    private void createVoucherOrders(List<VoucherOrder> orders) {
+        Map<Long, List<VoucherOrder>> byVoucher = orders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+
+        for (Map.Entry<Long, List<VoucherOrder>> entry : byVoucher.entrySet()) {
+            Long voucherId = entry.getKey();
+            List<VoucherOrder> group = entry.getValue();
+            Set<Long> persistedIds = new HashSet<>();
+            Boolean success = transactionTemplate.execute(status -> {
+                persistedIds.clear();
+                // 5.批量插入, 重复的被忽略: 同一用户已经买过(唯一索引) 或者 同一订单消息重复投递(主键)
+                int inserted = getBaseMapper().insertIgnoreBatch(group);
+
+                // 6.扣减库存  只扣真正插进去的  set stock = stock - n where voucher_id = ? and stock >= n
+                if (inserted > 0) {
+                    boolean updated = seckillVoucherService.update()
+                            .setSql("stock = stock - " + inserted)
+                            .eq("voucher_id", voucherId).ge("stock", inserted)
+                            .update();
+                    if (!updated) {
+                        // 整组扣不下来, 回滚, 一单一单处理
+                        status.setRollbackOnly();
+                        return false;
+                    }
+                }
+
+                // 7.哪些订单在库里了 (包括之前已经写过的)
+                persistedIds.addAll(persistedIds(group));
+                return true;
+            });
+
+            if (Boolean.TRUE.equals(success)) {
+                // 8.事务提交以后再记录处理结果
+                List<VoucherOrder> persisted = new ArrayList<>();
+                List<VoucherOrder> repeated = new ArrayList<>();
+                for (VoucherOrder order : group) {
+                    (persistedIds.contains(order.getId()) ? persisted : repeated).add(order);
+                }
+                if (!repeated.isEmpty()) {
+                    log.error("不允许重复下单！" + repeated.size() + "单, voucherId: " + voucherId);
+                }
+                orderResultStore.save(persisted, OrderResultStore.SUCCESS, null);
+                orderResultStore.save(repeated, OrderResultStore.FAILED, "不允许重复下单");
+            } else {
+                for (VoucherOrder order : group) {
+                    String reason = transactionTemplate.execute(status -> createVoucherOrder(order, status));
+                    orderResultStore.save(order, reason == null ? OrderResultStore.SUCCESS : OrderResultStore.FAILED, reason);
+                }
             }
+        }
+    }
 
-            // 6.扣减库存
-            boolean success = seckillVoucherService.update()
-                    .setSql("stock = stock - 1") // set stock = stock - 1
-                    .eq("voucher_id", voucherId).gt("stock", 0) // where id = ? and stock > 0
-                    .update();
-            if (!success) {
-                // 扣减失败
-                log.error("库存不足！");
-                return;
+    /**
+     * 根据voucherOrder订单信息  实际写数据库 (在事务中调用)
+     * 先插入(重复的被唯一索引忽略), 再扣库存, 扣不了就回滚
+     * @return 失败原因, 成功返回null
+     **/
+    private String createVoucherOrder(VoucherOrder voucherOrder, TransactionStatus status) {
+        // 5.插入订单  INSERT IGNORE
+        int inserted = getBaseMapper().insertIgnoreBatch(Collections.singletonList(voucherOrder));
+        if (inserted == 0) {
+            // 同一个订单已经写过了 (消息重复投递), 算成功
+            if (!persistedIds(Collections.singletonList(voucherOrder)).isEmpty()) {
+                return null;
             }
+            // 用户已经购买过了
+            log.error("不允许重复下单！");
+            return "不允许重复下单";
+        }
 
-            // 7.创建订单
-            save(voucherOrder);
-        } finally {
-            // 释放锁
-            redisLock.unlock();
+        // 6.扣减库存
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock - 1") // set stock = stock - 1
+                .eq("voucher_id", voucherOrder.getVoucherId()).gt("stock", 0) // where id = ? and stock > 0
+                .update();
+        if (!success) {
+            // 扣减失败, 插入的订单也要回滚
+            status.setRollbackOnly();
+            log.error("库存不足！");
+            return "库存不足";
         }
+        return null;
+    }
+
+    private Set<Long> persistedIds(List<VoucherOrder> orders) {
+        List<Long> ids = orders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+        return query().select("id").in("id", ids).list().stream()
+                .map(VoucherOrder::getId).collect(Collectors.toSet());
     }
 
 
@@ -210,35 +502,129 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      **/
     @Override
     public Result seckillVoucher(Long voucherId) {
+        // 不存在的优惠券直接拒绝 (否则lua脚本里拿不到库存会报错)
+        if (!idBloomFilters.mightContain(IdBloomFilters.VOUCHER, voucherId))
+            return Result.fail("优惠券不存在");
+
+        // 本节点已经知道卖完了, 不用再去redis
+        if (soldOutFlags.isSoldOut(voucherId))
+            return Result.fail("库存不足");
+
+        // 本地缓存的秒杀时间窗口, 没开始/已结束的直接拒绝 (最终以lua脚本里用redis时间判断的为准)
+        int window = seckillWindows.check(voucherId);
+        if (window != SeckillStockShards.SUCCESS)
+            return seckillFailure(voucherId, window);
+
+        // 超出本节点的处理能力, 直接拒绝, 不去redis (429, 由WebExceptionAdvice处理)
+        // 放在上面这些本地判断之后: 卖完了/没开始的请求不占令牌, 直接返回结果, 不会让客户端过一会儿再来重试
+        long retryAfterMillis = seckillAdmission.tryAcquire(voucherId);
+        if (retryAfterMillis > 0)
+            throw new SeckillThrottledException(retryAfterMillis);
+        try {
+            return doSeckillVoucher(voucherId);
+        } finally {
+            seckillAdmission.release();
+        }
+    }
+
+    /**
+     * 通过了本地判断和准入控制以后, 到redis里抢券
+     **/
+    private Result doSeckillVoucher(Long voucherId) {
+        // 记一次库存key的访问, 用来发现哪个秒杀券是热点
+        hotKeyDetector.record(SeckillStockShards.stockKey(voucherId));
 
         // 生成订单id
         long orderId = redisIdWorker.nextId("order");
         Long userId = UserHolder.getUser().getId();
 
-        // 执行lua脚本
-        // java使用redisTemplate提供的方法调用脚本
-        // 参数: 脚本; 参数列表值; 其他参数值
-        Long res = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(), String.valueOf(orderId)
-        );
+        // 执行lua脚本: 判断时间窗口、库存、一人一单, 并记下待发送的订单
+        int r = seckillStockShards.trySeckill(voucherId, userId, orderId);
 
         // 判断结果是否为0
         // 不为0，没用购买权限
-        int r = res.intValue();
-        if (r != 0)
-            return Result.fail(res == 1 ? "库存不足" : "不能重复购买");
-
+        if (r != SeckillStockShards.SUCCESS)
+            return seckillFailure(voucherId, r);
 
+        // 发订单消息
+        // stream.orders 和库存key不在同一个slot, 集群模式下不能放进脚本里, 由这里发
+        // 发之前进程挂了: 脚本记下的待发送订单由对账任务补发 (reconcilePendingOrders)
+        try {
+            sendOrder(orderId, userId, voucherId);
+        } catch (Exception e) {
+            // 消息没发出去, 这个订单永远不会被处理: 还回库存和购买资格, 让用户重试
+            log.error("发送订单消息失败, 撤销本次秒杀, orderId: " + orderId, e);
+            seckillStockShards.cancel(voucherId, userId);
+            return Result.fail("下单失败, 请重试");
+        }
+        seckillStockShards.confirm(voucherId, userId);
 
-        // todo 将优惠券信息放入阻塞队列
+        return Result.ok(orderId);
+    }
 
+    /**
+     * 发订单消息  XADD stream.orders * userId .. voucherId .. id ..
+     **/
+    private void sendOrder(long orderId, Long userId, Long voucherId) {
+        Map<String, String> order = new HashMap<>();
+        order.put("userId", userId.toString());
+        order.put("voucherId", voucherId.toString());
+        order.put("id", String.valueOf(orderId));
+        stringRedisTemplate.opsForStream().add(STREAM_ORDERS_KEY, order);
+    }
 
+    /**
+     * 【对账】 扣了库存、占了购买资格, 但订单消息没发出去 (发之前进程挂了) 的订单, 补发消息
+     * 只看最近一天内结束的秒杀券; 等了reconcileMinAgeSeconds还在的才补, 正在下单的不会被误判
+     * 发完消息没来得及删记录的也会再发一次: 订单id相同, 写数据库时按主键去重, 库存也不会多扣
+     **/
+    private void reconcilePendingOrders() {
+        try {
+            long before = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(reconcileMinAgeSeconds);
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .select("voucher_id")
+                    .ge("end_time", LocalDateTime.now().minusDays(1))
+                    .list();
+            for (SeckillVoucher voucher : vouchers) {
+                Long voucherId = voucher.getVoucherId();
+                seckillStockShards.pendingOrders(voucherId, before).forEach((userId, orderId) -> {
+                    log.warn("补发未发出的订单消息, orderId: " + orderId);
+                    sendOrder(orderId, userId, voucherId);
+                    seckillStockShards.confirm(voucherId, userId);
+                });
+            }
+        } catch (Exception e) {
+            log.error("订单对账异常", e);
+        }
+    }
 
-        return Result.ok(orderId);
+    /**
+     * lua脚本返回的错误码 转成 提示信息
+     **/
+    private Result seckillFailure(Long voucherId, int r) {
+        switch (r) {
+            case SeckillStockShards.SOLD_OUT:
+                // 卖完了, 后面的请求在本地就拦下来
+                soldOutFlags.markSoldOut(voucherId);
+                return Result.fail("库存不足");
+            case SeckillStockShards.NOT_STARTED:
+                return Result.fail("当前抢购尚未开始!");
+            case SeckillStockShards.ENDED:
+                return Result.fail("秒杀已经结束...");
+            default:
+                return Result.fail("不能重复购买");
+        }
     }
 
+    /**
+     * 查询秒杀订单的处理结果 (长轮询)
+     * 还没处理完时最多等timeoutSeconds秒, 期间出了结果马上返回
+     **/
+    @Override
+    public DeferredResult<Result> queryOrderStatus(Long orderId, Long timeoutSeconds) {
+        long wait = Math.min(Math.max(timeoutSeconds, 0), statusMaxWaitSeconds);
+        return orderResultStore.await(orderId, UserHolder.getUser().getId(), TimeUnit.SECONDS.toMillis(wait));
+    }
 
     /**
      * 购买秒杀优惠券
@@ -306,7 +692,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         // 【集群一人一单】
         // 获取锁
         SimpleRedisLock simpleRedisLock =
-                new SimpleRedisLock(stringRedisTemplate, "order:" + userId);// order-订单；userid-标识用户
+                new SimpleRedisLock(stringRedisTemplate, luaScriptRegistry, "order:" + userId);// order-订单；userid-标识用户
         boolean isLock = simpleRedisLock.tryLock(1200);
 
         if (!isLock)
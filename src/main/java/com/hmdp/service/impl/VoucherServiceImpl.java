@@ -7,15 +7,18 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.IdBloomFilters;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SoldOutFlags;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.List;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
-
 /**
  * <p>
  *  服务实现类
@@ -33,6 +36,15 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    IdBloomFilters idBloomFilters;
+
+    @Resource
+    SoldOutFlags soldOutFlags;
+
+    @Resource
+    SeckillStockShards seckillStockShards;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -41,6 +53,18 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         return Result.ok(vouchers);
     }
 
+    /**
+     * 新增优惠券, 同时加入布隆过滤器
+     **/
+    @Override
+    public boolean save(Voucher voucher) {
+        boolean success = super.save(voucher);
+        if (success) {
+            idBloomFilters.add(IdBloomFilters.VOUCHER, voucher.getId());
+        }
+        return success;
+    }
+
     @Override
     @Transactional
     public void addSeckillVoucher(Voucher voucher) {
@@ -54,8 +78,15 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
 
-        // 将秒杀优惠券信息存到redis中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        // 将秒杀优惠券信息(库存、开始结束时间)存到redis中 (开了分片库存的话拆成多个key)
+        seckillStockShards.initStock(voucher.getId(), voucher.getStock(),
+                toMillis(voucher.getBeginTime()), toMillis(voucher.getEndTime()));
+        // 有库存了, 清掉各节点的售罄标记
+        soldOutFlags.clear(voucher.getId());
+
+    }
 
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
     }
 }
@@ -2,19 +2,28 @@ package com.hmdp.utils;
 
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.Function;
-import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -32,23 +41,164 @@ public class CacheClient {
     private StringRedisTemplate stringRedisTemplate;
 
     /**
-    * 将对象value 以json字符串格式存到redis
+     * 缓存对象直接按字节存取, 怎么编解码由codec决定
+     **/
+    @Resource
+    private RedisTemplate<String, byte[]> byteRedisTemplate;
+
+    /**
+     * 写入用哪种格式: kryo(二进制, 默认) / json
+     * 读取时按数据开头的标记自动判断, 两种格式可以混着存在
+     **/
+    @Value("${hmdp.cache.codec:kryo}")
+    private String codecName;
+
+    private final CacheCodec kryoCodec = new KryoCacheCodec();
+    private final CacheCodec jsonCodec = new JsonCacheCodec();
+    private CacheCodec writeCodec;
+
+    /**
+     * 本地一级缓存(L1)  放的是已经反序列化好的对象, 命中时既不走redis也不用再解析json
+     * redis作为二级缓存(L2), L1没命中再走原来的redis逻辑
+     **/
+    @Value("${hmdp.cache.local.enabled:true}")
+    private boolean localCacheEnabled;
+
+    @Value("${hmdp.cache.local.maximum-size:10000}")
+    private long localCacheMaximumSize;
+
+    @Value("${hmdp.cache.local.ttl-seconds:10}")
+    private long localCacheTtlSeconds;
+
+    private Cache<String, Object> localCache;
+
+    /**
+     * 【热点key】 访问量超过阈值的key钉在这个小缓存里 (过期时间短, 不会被普通key挤出去)
+     * 不开一级缓存时也生效, 防止爆款店铺的流量全打到同一个redis分片
+     **/
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @Value("${hmdp.cache.hot-key.pin-maximum-size:1000}")
+    private long pinMaximumSize;
+
+    @Value("${hmdp.cache.hot-key.pin-ttl-seconds:5}")
+    private long pinTtlSeconds;
+
+    private Cache<String, Object> pinnedCache;
+
+    /**
+     * 多节点时, 一个节点改了数据要通知其他节点删掉本地缓存
+     **/
+    @Resource
+    private CacheInvalidationBus cacheInvalidationBus;
+
+    @PostConstruct
+    private void initLocalCache() {
+        writeCodec = "json".equalsIgnoreCase(codecName) ? jsonCodec : kryoCodec;
+
+        // 按容量 + 写入后过期 两种方式淘汰
+        localCache = Caffeine.newBuilder()
+                .maximumSize(localCacheMaximumSize)
+                .expireAfterWrite(localCacheTtlSeconds, TimeUnit.SECONDS)
+                .build();
+        pinnedCache = Caffeine.newBuilder()
+                .maximumSize(pinMaximumSize)
+                .expireAfterWrite(pinTtlSeconds, TimeUnit.SECONDS)
+                .build();
+        // 收到其他节点的失效通知, 只删自己的本地缓存 (不能再广播出去)
+        cacheInvalidationBus.subscribe(this::evictLocal);
+    }
+
+    /**
+     * 读的时候: 按数据开头的标记选编解码器
+     **/
+    private CacheCodec codecFor(byte[] bytes) {
+        return kryoCodec.supports(bytes) ? kryoCodec : jsonCodec;
+    }
+
+    /**
+    * 将对象value 编码后存到redis
     */
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        byteRedisTemplate.opsForValue().set(key, writeCodec.encode(value), ttlWithJitter(key, time, unit), TimeUnit.MILLISECONDS);
+        // redis里的值变了, 所有节点本地的旧值都不能再用
+        invalidateLocal(key);
+    }
+
+    /**
+     * 删除缓存 (redis + 本地缓存)
+     * 修改数据库后调用
+     **/
+    public void delete(String key) {
+        byteRedisTemplate.delete(key);
+        invalidateLocal(key);
+    }
+
+    /**
+     * 删除本节点的本地缓存, 并通知其他节点也删掉
+     **/
+    private void invalidateLocal(String key) {
+        evictLocal(key);
+        // 其他节点可能开了一级缓存, 也可能把它当热点key钉住了
+        cacheInvalidationBus.publish(key);
+    }
+
+    /**
+     * 只清除本节点的本地缓存
+     **/
+    public void evictLocal(String key) {
+        if (localCacheEnabled) {
+            localCache.invalidate(key);
+        }
+        pinnedCache.invalidate(key);
+    }
+
+    /**
+     * 从本地缓存中取对象, 取不到或者类型不对返回null  (顺便记一次访问, 用来探测热点key)
+     * 注意: 返回的是缓存中的同一个对象, 调用方不要修改它
+     **/
+    private Object getLocal(String key) {
+        hotKeyDetector.record(key);
+        Object pinned = pinnedCache.getIfPresent(key);
+        if (pinned != null) {
+            return pinned;
+        }
+        return localCacheEnabled ? localCache.getIfPresent(key) : null;
+    }
+
+    private void putLocal(String key, Object value) {
+        if (value == null) {
+            return;
+        }
+        if (localCacheEnabled) {
+            localCache.put(key, value);
+        }
+        if (hotKeyDetector.isHot(key)) {
+            pinnedCache.put(key, value);
+        }
     }
 
     /**
     * 为防止【缓存击穿】的逻辑过期存入
     */
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
+        setWithLogicalExpire(key, value, time, unit, null);
+    }
+
+    /**
+     * 逻辑过期存入, 同时记下这次重建花了多少毫秒 (【提前刷新】按这个估算要提前多久)
+     **/
+    public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit, Long rebuildMillis) {
         // 包裹数据
         RedisData redisData = new RedisData();
         redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        redisData.setExpireTime(LocalDateTime.now().plusNanos(TimeUnit.MILLISECONDS.toNanos(ttlWithJitter(key, time, unit))));
+        redisData.setRebuildMillis(rebuildMillis);
 
         // 存储
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        byteRedisTemplate.opsForValue().set(key, writeCodec.encode(redisData));
+        invalidateLocal(key);
     }
 
     /**
@@ -58,112 +208,500 @@ public class CacheClient {
     public <R, ID> R queryWithPassThrough(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallBack, Long time, TimeUnit unit) {     // 1. 不知道返回什么类型-- 【泛型】
 
-        // 从Redis查询商铺缓存
         String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
+        // 先查本地缓存
+        Object local = getLocal(key);
+        if (type.isInstance(local)) {
+            return type.cast(local);
+        }
+
+        // 从Redis查询商铺缓存
+        byte[] bytes = byteRedisTemplate.opsForValue().get(key);
 
         // 判断缓存是否命中
-        if (StrUtil.isNotBlank(json)) {
+        if (bytes != null && bytes.length > 0) {
             // redis中有这个数据，直接返回
-            // 因为这里是一个string，得先反序列化为对象
-            R r = JSONUtil.toBean(json, type);      // 2. 形参指定R的类型
-            return r;
+            // 得先反序列化为对象 (解不出来说明是不认识的老格式, 当作没命中重新查)
+            R r = codecFor(bytes).decode(bytes, type);      // 2. 形参指定R的类型
+            if (r != null) {
+                putLocal(key, r);
+                return r;
+            }
         }
 
-        // 【防止内存穿透】 上面if下来后，可能为  null "" /n  这类
+        // 【防止内存穿透】 上面if下来后，可能为  null 或者 空值
         //  所以防止内存穿透往redis中放的“”  就有可能走下来，但是不能让这类值去查询数据库
-        if (json != null)       // != null 就说明这个值为 "" 空字符串(防止缓存击穿设置的值)
+        if (bytes != null && bytes.length == 0)       // 空值就说明是防止缓存穿透设置的值
             return null;
 
         // 查询数据库
         // redis中没有这个数据，去数据库拿
-        R r = dbFallBack.apply(id);                 // 3. 根本不知道查哪个表-- 【函数式编程】; 由调用者指定具体查询代码!
-        if (r == null) {
-            // 【防止内存穿透】 将空值写入redis
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+        // 同一个key同时只让一个线程查数据库, 其他线程等它的结果 (防止热点key过期瞬间大量请求打到数据库)
+        return loadOnce(key, type, () -> {
+            R r = dbFallBack.apply(id);                 // 3. 根本不知道查哪个表-- 【函数式编程】; 由调用者指定具体查询代码!
+            if (r == null) {
+                // 【防止内存穿透】 将空值写入redis
+                byteRedisTemplate.opsForValue().set(key, new byte[0], ttlWithJitter(key, CACHE_NULL_TTL, TimeUnit.MINUTES), TimeUnit.MILLISECONDS);
+
+                // 返回错误信息
+                return null;
+            }
 
-            // 返回错误信息
-            return null;
-        }
+            // 把这个商户存到redis中
+            byteRedisTemplate.opsForValue().set(key, writeCodec.encode(r), ttlWithJitter(key, time, unit), TimeUnit.MILLISECONDS);
+            putLocal(key, r);
 
-        // 把这个商户存到redis中
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(r), time, unit);
+            return r;
+        });
+    }
 
-        return r;
+    /**
+     * 正在查数据库的key -> 查询结果
+     **/
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlightLoads = new ConcurrentHashMap<>();
+
+    @Value("${hmdp.cache.single-flight.timeout-ms:3000}")
+    private long singleFlightTimeoutMs;
+
+    /**
+     * 【请求合并 single-flight】 本JVM内同一个key同时只执行一次loader
+     * 第一个线程负责执行loader, 其他线程等待它的结果; loader抛出的异常也会原样抛给等待的线程
+     **/
+    private <R> R loadOnce(String key, Class<R> type, Supplier<R> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> running = inFlightLoads.putIfAbsent(key, future);
+
+        // 已经有线程在查了, 等它的结果
+        if (running != null) {
+            try {
+                return type.cast(running.get(singleFlightTimeoutMs, TimeUnit.MILLISECONDS));
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new RuntimeException(cause);
+            } catch (TimeoutException e) {
+                throw new RuntimeException("等待数据加载超时: " + key, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+
+        // 自己负责查
+        try {
+            R r = loader.get();
+            future.complete(r);
+            return r;
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightLoads.remove(key, future);
+        }
     }
 
-    // 创建线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    // 重建缓存的线程池 (有界队列 + 同一个key只重建一次)
+    @Resource
+    private CacheRebuildScheduler cacheRebuildScheduler;
+
+    /**
+     * 【提前刷新】的激进程度, 越大越早开始刷新 (XFetch算法里的beta)
+     **/
+    @Value("${hmdp.cache.refresh-ahead.beta:1.0}")
+    private double refreshAheadBeta;
+
+    /**
+     * 还没有测到重建耗时的数据(老数据) 按这个耗时估算
+     **/
+    @Value("${hmdp.cache.refresh-ahead.default-rebuild-millis:100}")
+    private long defaultRebuildMillis;
 
     /**
     * 防止【缓存击穿】地获取数据
     */
     public <R, ID> R queryWithLogicalExpire(
             String keyPrefix, ID id, Class<R> type, String lockKeyPrefix, Function<ID, R> dbFallBack, Long time, TimeUnit unit) {
+        return queryWithLogicalExpire(keyPrefix, id, type, lockKeyPrefix, dbFallBack, time, unit, false);
+    }
+
+    /**
+     * 防止【缓存击穿】地获取数据 + 【提前刷新】
+     * 快过期的时候就按一定概率提前重建, 离过期时间越近、重建越慢, 概率越大 (XFetch算法)
+     * 这样热点key基本在过期前就被刷新了, 不会出现所有节点同时抢锁的情况
+     **/
+    public <R, ID> R queryWithRefreshAhead(
+            String keyPrefix, ID id, Class<R> type, String lockKeyPrefix, Function<ID, R> dbFallBack, Long time, TimeUnit unit) {
+        return queryWithLogicalExpire(keyPrefix, id, type, lockKeyPrefix, dbFallBack, time, unit, true);
+    }
+
+    private <R, ID> R queryWithLogicalExpire(
+            String keyPrefix, ID id, Class<R> type, String lockKeyPrefix, Function<ID, R> dbFallBack, Long time, TimeUnit unit,
+            boolean refreshAhead) {
 
         String key = keyPrefix + id;
+        String lockKey = lockKeyPrefix + id;
+        // 先查本地缓存, 本地存的是 data已经转成R的RedisData, 逻辑未过期直接返回
+        Object local = getLocal(key);
+        if (local instanceof RedisData) {
+            RedisData localData = (RedisData) local;
+            if (type.isInstance(localData.getData()) && localData.getExpireTime().isAfter(LocalDateTime.now())) {
+                if (refreshAhead && shouldRefreshEarly(localData)) {
+                    rebuild(key, lockKey, id, dbFallBack, time, unit);
+                }
+                return type.cast(localData.getData());
+            }
+        }
+
         // 从Redis查询商铺缓存
-        String redisJson = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = byteRedisTemplate.opsForValue().get(key);
 
         // 判断缓存是否命中
-        if (StrUtil.isBlank(redisJson))
+        if (bytes == null || bytes.length == 0)
             // 未命中，直接返回null, 说明这个数据没有提前预热在redis中, 说明这不是个热点数据
             return null;
 
         // 命中
         // 判断缓存是否过期, 未过期, 直接拿到并返回新数据
-        // 先转为对象
-        RedisData redisData = JSONUtil.toBean(redisJson, RedisData.class);
-        JSONObject jsonObject = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(jsonObject, type);
+        // 先转为对象 (json格式要解析两次, 二进制格式一次就拿到R)
+        RedisData redisData = codecFor(bytes).decodeRedisData(bytes, type);
+        if (redisData == null)
+            // 不认识的老格式, 等预热重新写入
+            return null;
+        R r = type.cast(redisData.getData());
         LocalDateTime expireTime = redisData.getExpireTime();
 
         // 未过期, 直接返回新数据
         if (redisData.getExpireTime().isAfter(LocalDateTime.now())) {
+            // 放入本地缓存 (已经过期的不放, 让后面的请求继续走redis拿重建后的数据)
+            RedisData localData = new RedisData();
+            localData.setData(r);
+            localData.setExpireTime(expireTime);
+            localData.setRebuildMillis(redisData.getRebuildMillis());
+            putLocal(key, localData);
+
+            // 快过期了, 提前重建
+            if (refreshAhead && shouldRefreshEarly(redisData)) {
+                rebuild(key, lockKey, id, dbFallBack, time, unit);
+            }
             return r;
         }
 
         // 逻辑过期了
+        rebuild(key, lockKey, id, dbFallBack, time, unit);
+
+        // 直接返回旧数据 (无论逻辑是否过期, 都返回旧数据)
+        return r;
+    }
+
+    /**
+     * XFetch: now - 重建耗时 * beta * ln(random) >= 过期时间  就提前刷新
+     * ln(random)是负数, 所以相当于把当前时间往后推了一个随机量, 重建越慢推得越远
+     **/
+    private boolean shouldRefreshEarly(RedisData redisData) {
+        long rebuildMillis = redisData.getRebuildMillis() != null ? redisData.getRebuildMillis() : defaultRebuildMillis;
+        double gapMillis = -rebuildMillis * refreshAheadBeta * Math.log(ThreadLocalRandom.current().nextDouble());
+        return LocalDateTime.now().plusNanos((long) (gapMillis * 1_000_000)).isAfter(redisData.getExpireTime());
+    }
+
+    /**
+     * 抢到锁的节点开独立线程重建缓存, 抢不到的什么都不做
+     **/
+    private <R, ID> void rebuild(
+            String key, String lockKey, ID id, Function<ID, R> dbFallBack, Long time, TimeUnit unit) {
         // 尝试获取互斥锁
         // 判断锁是否获取成功
         // 未成功获取锁，直接返回店铺信息
-        String lockKey = lockKeyPrefix + id;
+        // 本节点已经在重建了, 不用再去抢redis的锁
+        if (cacheRebuildScheduler.isRebuilding(key)) {
+            return;
+        }
         if (!tryLock(lockKey)) {
-            return r;
+            return;
         }
 
         // 成功获取锁
         // 再次检查redis看是否有新的数据存在redis了, 如果有, 那就不用再建立线程写数据了
         /*...先不写这个判断  省略*/
 
-        // 开启独立线程
-        // 创建一个线程池
-
-        // 在独立线程中执行任务
-        CACHE_REBUILD_EXECUTOR.submit(()->{
+        // 在独立线程中执行任务  (异常由线程池记录, 这里不用再包)
+        boolean submitted = cacheRebuildScheduler.submit(key, () -> {
             // 根据id查数据库 修改redis数据并设置逻辑过期时间
             try {
-                // 重建缓存
+                // 重建缓存, 顺便记下查数据库花了多久, 给【提前刷新】用
+                long begin = System.currentTimeMillis();
                 R r1 = dbFallBack.apply(id);
+                long rebuildMillis = System.currentTimeMillis() - begin;
 
                 // 逻辑过期写入redis
-                this.setWithLogicalExpire(key, r1, time, unit);
-
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }finally {
+                this.setWithLogicalExpire(key, r1, time, unit, rebuildMillis);
+            } finally {
                 // 释放互斥锁
                 unLock(lockKey);
             }
         });
+        if (!submitted) {
+            // 没提交成功, 锁要自己释放, 否则要等锁自动过期
+            unLock(lockKey);
+        }
+    }
+
+    /**
+     * 【过期时间随机抖动】 在ttl的基础上随机加 0~ttlJitterPercent% , 防止一批key在同一秒过期
+     **/
+    @Value("${hmdp.cache.ttl-jitter-percent:10}")
+    private int ttlJitterPercent;
 
-        // 关闭线程池
-        CACHE_REBUILD_EXECUTOR.shutdown();
+    @Resource
+    private MeterRegistry meterRegistry;
 
-        // 直接返回旧数据 (无论逻辑是否过期, 都返回旧数据)
+    // key前缀 -> 写入时的过期时间分布
+    private final Map<String, DistributionSummary> ttlSummaries = new ConcurrentHashMap<>();
+
+    /**
+     * 加了随机抖动的过期时间 (毫秒)
+     **/
+    private long ttlWithJitter(String key, Long time, TimeUnit unit) {
+        long millis = unit.toMillis(time);
+        if (ttlJitterPercent > 0) {
+            millis += (long) (millis * ttlJitterPercent / 100.0 * ThreadLocalRandom.current().nextDouble());
+        }
+        recordTtl(key, millis);
+        return millis;
+    }
+
+    /**
+     * 按key前缀记录过期时间的分布, 看一批key的过期时间有没有挤在一起
+     **/
+    private void recordTtl(String key, long ttlMillis) {
+        String prefix = key.substring(0, key.lastIndexOf(':') + 1);
+        ttlSummaries.computeIfAbsent(prefix, p -> DistributionSummary.builder("cache.write.ttl")
+                .description("写入缓存时的过期时间(秒)")
+                .baseUnit("seconds")
+                .tag("prefix", p)
+                .publishPercentileHistogram()
+                .register(meterRegistry))
+                .record(ttlMillis / 1000.0);
+    }
+
+    /**
+     * 【缓存预热】 批量写入一批数据, 过期时间在 [ttl, ttl + spread] 里均匀错开, 不会同时过期
+     * 每500条一个pipeline
+     * @param logicalExpire true: 按【逻辑过期】格式写入(不设置redis过期时间); false: 普通格式, 设置redis过期时间
+     */
+    public <R, ID> void warmUp(String keyPrefix, List<R> values, Function<R, ID> idGetter,
+                               Long time, Long spread, TimeUnit unit, boolean logicalExpire) {
+        long ttlMillis = unit.toMillis(time);
+        long spreadMillis = unit.toMillis(spread);
+        int total = values.size();
+        for (int from = 0; from < total; from += 500) {
+            List<R> batch = values.subList(from, Math.min(from + 500, total));
+            int offset = from;
+            byteRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (int i = 0; i < batch.size(); i++) {
+                    R r = batch.get(i);
+                    String key = keyPrefix + idGetter.apply(r);
+                    // 第i个key的过期时间 = ttl + spread * i / total
+                    long millis = ttlMillis + spreadMillis * (offset + i) / Math.max(total, 1);
+                    recordTtl(key, millis);
+                    byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+                    if (logicalExpire) {
+                        RedisData redisData = new RedisData();
+                        redisData.setData(r);
+                        redisData.setExpireTime(LocalDateTime.now().plusNanos(TimeUnit.MILLISECONDS.toNanos(millis)));
+                        connection.set(rawKey, writeCodec.encode(redisData));
+                    } else {
+                        connection.set(rawKey, writeCodec.encode(r), Expiration.milliseconds(millis),
+                                RedisStringCommands.SetOption.upsert());
+                    }
+                }
+                return null;
+            });
+            // 各节点本地的旧数据作废
+            batch.forEach(r -> invalidateLocal(keyPrefix + idGetter.apply(r)));
+        }
+        log.info("缓存预热完成, 前缀: {}, 共{}条", keyPrefix, total);
+    }
+
+    /**
+     * 【批量查询】 防止【缓存穿透】地批量获取数据  (列表接口用)
+     * 本地缓存 -> 一次MGET查redis -> 没命中的一次性查数据库 -> 一次pipeline写回redis
+     * N个id只要2~3次网络往返
+     * @param batchDbFallBack 根据一批id查数据库, 例如 listByIds
+     * @param idGetter 从查出来的对象上取id, 用来和key对应
+     * @return id -> 数据, 按ids的顺序; 不存在的id不在里面
+     */
+    public <R, ID> Map<ID, R> queryBatch(
+            String keyPrefix, Collection<ID> ids, Class<R> type,
+            Function<Collection<ID>, ? extends Collection<R>> batchDbFallBack, Function<R, ID> idGetter,
+            Long time, TimeUnit unit) {
+        return queryBatch(keyPrefix, ids, type, null, batchDbFallBack, idGetter, time, unit, false);
+    }
+
+    /**
+     * 【批量查询】 key里存的是【逻辑过期】格式的数据时用这个
+     * 和 queryWithLogicalExpire 一样: 逻辑过期了的直接返回旧数据, 抢到锁的节点在线程池里一个个重建
+     * redis里根本没有的 (没预热过) 才跟着这一批一起查数据库
+     */
+    public <R, ID> Map<ID, R> queryBatchWithLogicalExpire(
+            String keyPrefix, Collection<ID> ids, Class<R> type, String lockKeyPrefix,
+            Function<Collection<ID>, ? extends Collection<R>> batchDbFallBack, Function<R, ID> idGetter,
+            Long time, TimeUnit unit) {
+        return queryBatch(keyPrefix, ids, type, lockKeyPrefix, batchDbFallBack, idGetter, time, unit, true);
+    }
+
+    private <R, ID> Map<ID, R> queryBatch(
+            String keyPrefix, Collection<ID> ids, Class<R> type, String lockKeyPrefix,
+            Function<Collection<ID>, ? extends Collection<R>> batchDbFallBack, Function<R, ID> idGetter,
+            Long time, TimeUnit unit, boolean logicalExpire) {
+        Map<ID, R> result = new LinkedHashMap<>();
+        if (ids == null || ids.isEmpty()) {
+            return result;
+        }
+        // 去重, 保持顺序
+        List<ID> distinctIds = new ArrayList<>(new LinkedHashSet<>(ids));
+
+        // 1. 先查本地缓存
+        List<ID> redisIds = new ArrayList<>();
+        for (ID id : distinctIds) {
+            R r = fromLocal(keyPrefix + id, type, logicalExpire);
+            if (r != null) {
+                result.put(id, r);
+            } else {
+                redisIds.add(id);
+            }
+        }
+        if (redisIds.isEmpty()) {
+            return result;
+        }
+
+        // 2. 一次MGET查redis
+        List<String> keys = redisIds.stream().map(id -> keyPrefix + id).collect(Collectors.toList());
+        List<byte[]> values = byteRedisTemplate.opsForValue().multiGet(keys);
+        List<ID> missIds = new ArrayList<>();
+        for (int i = 0; i < redisIds.size(); i++) {
+            ID id = redisIds.get(i);
+            byte[] bytes = values == null ? null : values.get(i);
+            if (bytes != null && bytes.length == 0) {
+                // 防止缓存穿透存的空值, 说明数据库里也没有
+                continue;
+            }
+            R r = null;
+            if (bytes != null) {
+                r = logicalExpire
+                        ? decodeLogicalHit(keys.get(i), lockKeyPrefix + id, id, bytes, type, batchDbFallBack, time, unit)
+                        : decodeHit(keys.get(i), bytes, type);
+            }
+            if (r != null) {
+                result.put(id, r);
+            } else {
+                missIds.add(id);
+            }
+        }
+        if (missIds.isEmpty()) {
+            return reorder(distinctIds, result);
+        }
+
+        // 3. 没命中的一次性查数据库
+        Map<ID, R> loaded = new HashMap<>();
+        Collection<R> rows = batchDbFallBack.apply(missIds);
+        if (rows != null) {
+            for (R row : rows) {
+                loaded.put(idGetter.apply(row), row);
+            }
+        }
+
+        // 4. 一次pipeline写回redis
+        byteRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ID id : missIds) {
+                String key = keyPrefix + id;
+                byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+                R r = loaded.get(id);
+                if (r == null) {
+                    // 【防止缓存穿透】 逻辑过期的数据都是预热进去的, 不存空值
+                    if (!logicalExpire) {
+                        connection.set(rawKey, new byte[0], Expiration.milliseconds(ttlWithJitter(key, CACHE_NULL_TTL, TimeUnit.MINUTES)),
+                                RedisStringCommands.SetOption.upsert());
+                    }
+                    continue;
+                }
+                if (logicalExpire) {
+                    RedisData redisData = new RedisData();
+                    redisData.setData(r);
+                    redisData.setExpireTime(LocalDateTime.now().plusNanos(TimeUnit.MILLISECONDS.toNanos(ttlWithJitter(key, time, unit))));
+                    connection.set(rawKey, writeCodec.encode(redisData));
+                    putLocal(key, redisData);
+                } else {
+                    connection.set(rawKey, writeCodec.encode(r), Expiration.milliseconds(ttlWithJitter(key, time, unit)),
+                            RedisStringCommands.SetOption.upsert());
+                    putLocal(key, r);
+                }
+            }
+            return null;
+        });
+
+        result.putAll(loaded);
+        return reorder(distinctIds, result);
+    }
+
+    /**
+     * 从本地缓存取, 逻辑过期格式的要没过期才算
+     **/
+    private <R> R fromLocal(String key, Class<R> type, boolean logicalExpire) {
+        Object local = getLocal(key);
+        if (logicalExpire && local instanceof RedisData) {
+            RedisData localData = (RedisData) local;
+            if (type.isInstance(localData.getData()) && localData.getExpireTime().isAfter(LocalDateTime.now())) {
+                return type.cast(localData.getData());
+            }
+            return null;
+        }
+        return !logicalExpire && type.isInstance(local) ? type.cast(local) : null;
+    }
+
+    /**
+     * 解码redis命中的数据并放入本地缓存, 解不了返回null
+     **/
+    private <R> R decodeHit(String key, byte[] bytes, Class<R> type) {
+        R r = codecFor(bytes).decode(bytes, type);
+        putLocal(key, r);
         return r;
     }
 
+    /**
+     * 解码redis命中的【逻辑过期】数据, 解不了返回null
+     * 没过期的放入本地缓存; 过期了的照样返回旧数据, 走 rebuild (锁 + 重建线程池) 重建这一个key
+     **/
+    private <R, ID> R decodeLogicalHit(
+            String key, String lockKey, ID id, byte[] bytes, Class<R> type,
+            Function<Collection<ID>, ? extends Collection<R>> batchDbFallBack, Long time, TimeUnit unit) {
+        RedisData redisData = codecFor(bytes).decodeRedisData(bytes, type);
+        if (redisData == null) {
+            return null;
+        }
+        if (redisData.getExpireTime().isAfter(LocalDateTime.now())) {
+            putLocal(key, redisData);
+        } else {
+            rebuild(key, lockKey, id, one -> {
+                Collection<R> rows = batchDbFallBack.apply(Collections.singletonList(one));
+                return rows == null || rows.isEmpty() ? null : rows.iterator().next();
+            }, time, unit);
+        }
+        return type.cast(redisData.getData());
+    }
+
+    private <R, ID> Map<ID, R> reorder(List<ID> ids, Map<ID, R> found) {
+        Map<ID, R> ordered = new LinkedHashMap<>();
+        for (ID id : ids) {
+            R r = found.get(id);
+            if (r != null) {
+                ordered.put(id, r);
+            }
+        }
+        return ordered;
+    }
+
     /**
      * 获取互斥锁
      * 为什么用setIfAbsent()作为互斥锁详见笔记
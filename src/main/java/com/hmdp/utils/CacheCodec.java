@@ -0,0 +1,27 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存对象 <-> redis里的字节 的编解码
+ **/
+public interface CacheCodec {
+
+    /**
+     * 对象编码成字节
+     */
+    byte[] encode(Object value);
+
+    /**
+     * 字节解码成对象, 解不了(比如版本不认识)返回null
+     */
+    <T> T decode(byte[] bytes, Class<T> type);
+
+    /**
+     * 解码【逻辑过期】的数据, 返回的RedisData里data已经是type类型, 解不了返回null
+     */
+    RedisData decodeRedisData(byte[] bytes, Class<?> type);
+
+    /**
+     * 这段字节是不是这个编解码器写的
+     */
+    boolean supports(byte[] bytes);
+}
@@ -0,0 +1,127 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+
+/**
+ * 本地缓存失效通知总线 (redis发布订阅)
+ * 某个节点改了数据 -> 把key发到channel -> 其他节点收到后删掉自己的本地缓存
+ * 写操作很密集的时候, 先把key攒一小会儿, 合并成一条消息再发
+ **/
+@Slf4j
+@Component
+public class CacheInvalidationBus {
+
+    // 当前节点的标识, 自己发的消息自己不用再处理
+    private static final String NODE_ID = UUID.randomUUID().toString(true);
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${hmdp.cache.invalidation.batch-size:200}")
+    private int batchSize;
+
+    @Value("${hmdp.cache.invalidation.flush-interval-ms:20}")
+    private long flushIntervalMs;
+
+    // 等待发送的key
+    private final BlockingQueue<String> pendingKeys = new LinkedBlockingQueue<>();
+
+    // 收到其他节点的失效消息后要做的事 (一般是删本地缓存)
+    private final List<Consumer<String>> subscribers = new CopyOnWriteArrayList<>();
+
+    private final ScheduledExecutorService flushExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "cache-invalidation-flush");
+        t.setDaemon(true);
+        return t;
+    });
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> onMessage(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        flushExecutor.scheduleWithFixedDelay(this::flush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        flushExecutor.shutdown();
+        // 关闭前把剩下的key发出去
+        flush();
+    }
+
+    /**
+     * 通知其他节点这个key失效了 (异步, 批量发送)
+     **/
+    public void publish(String key) {
+        pendingKeys.offer(key);
+    }
+
+    /**
+     * 注册收到失效消息后的处理逻辑
+     **/
+    public void subscribe(Consumer<String> subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    /**
+     * 把攒下来的key分批发出去, 一条消息最多batchSize个key
+     **/
+    private void flush() {
+        try {
+            List<String> drained = new ArrayList<>();
+            while (pendingKeys.drainTo(drained, batchSize) > 0) {
+                // 同一批里重复的key只发一次
+                Set<String> keys = new LinkedHashSet<>(drained);
+                JSONObject message = new JSONObject();
+                message.set("node", NODE_ID);
+                message.set("keys", keys);
+                stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, message.toString());
+                drained.clear();
+            }
+        } catch (Exception e) {
+            // 发送失败只能依靠本地缓存自己过期了
+            log.error("发送缓存失效消息异常", e);
+        }
+    }
+
+    private void onMessage(String body) {
+        try {
+            JSONObject message = JSONUtil.parseObj(body);
+            if (NODE_ID.equals(message.getStr("node"))) {
+                return;
+            }
+            for (String key : message.getJSONArray("keys").toList(String.class)) {
+                for (Consumer<String> subscriber : subscribers) {
+                    subscriber.accept(key);
+                }
+            }
+        } catch (Exception e) {
+            log.error("处理缓存失效消息异常: {}", body, e);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 【逻辑过期】缓存重建的线程池
+ * 1. 有界队列, 排满了直接拒绝 (调用方继续返回旧数据)
+ * 2. 同一个key同时最多只重建一次
+ * 3. 记录 队列长度/重建耗时/失败次数 等指标
+ * 4. 跟着spring容器一起关闭
+ **/
+@Slf4j
+@Component
+public class CacheRebuildScheduler {
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.cache.rebuild.pool-size:10}")
+    private int poolSize;
+
+    @Value("${hmdp.cache.rebuild.queue-capacity:1000}")
+    private int queueCapacity;
+
+    @Value("${hmdp.cache.rebuild.shutdown-timeout-seconds:10}")
+    private long shutdownTimeoutSeconds;
+
+    private ThreadPoolExecutor executor;
+
+    // 正在重建(或者排队等待重建)的key
+    private final Set<String> rebuildingKeys = ConcurrentHashMap.newKeySet();
+
+    private Timer rebuildTimer;
+    private Counter failedCounter;
+    private Counter rejectedCounter;
+
+    @PostConstruct
+    private void init() {
+        AtomicInteger threadIndex = new AtomicInteger();
+        executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> new Thread(r, "cache-rebuild-" + threadIndex.incrementAndGet()),
+                new ThreadPoolExecutor.AbortPolicy());
+
+        Gauge.builder("cache.rebuild.queue.size", executor, e -> e.getQueue().size())
+                .description("等待重建的任务数")
+                .register(meterRegistry);
+        Gauge.builder("cache.rebuild.active", executor, ThreadPoolExecutor::getActiveCount)
+                .description("正在重建的任务数")
+                .register(meterRegistry);
+        rebuildTimer = Timer.builder("cache.rebuild.latency")
+                .description("重建一次缓存的耗时")
+                .register(meterRegistry);
+        failedCounter = Counter.builder("cache.rebuild.failed").register(meterRegistry);
+        rejectedCounter = Counter.builder("cache.rebuild.rejected").register(meterRegistry);
+    }
+
+    /**
+     * 本节点是否已经在重建这个key
+     **/
+    public boolean isRebuilding(String key) {
+        return rebuildingKeys.contains(key);
+    }
+
+    /**
+     * 提交一个重建任务
+     * @return true: 提交成功;  false: 这个key已经在重建 或者 队列满了
+     */
+    public boolean submit(String key, Runnable task) {
+        if (!rebuildingKeys.add(key)) {
+            return false;
+        }
+        try {
+            executor.execute(() -> {
+                long begin = System.nanoTime();
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    // 线程池里的异常没人接, 必须自己记下来
+                    failedCounter.increment();
+                    log.error("重建缓存失败, key: {}", key, e);
+                } finally {
+                    rebuildTimer.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+                    rebuildingKeys.remove(key);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            rebuildingKeys.remove(key);
+            rejectedCounter.increment();
+            log.warn("重建缓存任务被拒绝, key: {}", key);
+            return false;
+        }
+    }
+
+    /**
+     * spring容器关闭时, 不再接新任务, 等已有的任务跑完
+     **/
+    @PreDestroy
+    private void shutdown() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(shutdownTimeoutSeconds, TimeUnit.SECONDS)) {
+            log.warn("缓存重建线程池未能在{}秒内关闭, 强制关闭", shutdownTimeoutSeconds);
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Count-Min Sketch 用固定大小的内存估算每个key出现的次数 (只会多估, 不会少估)
+ **/
+public class CountMinSketch {
+
+    private static final long[] SEEDS = {
+            0x9e3779b97f4a7c15L, 0xc2b2ae3d27d4eb4fL, 0x165667b19e3779f9L, 0xd6e8feb86659fd93L,
+            0xff51afd7ed558ccdL, 0xc4ceb9fe1a85ec53L, 0x27d4eb2f165667c5L, 0x85ebca77c2b2ae63L
+    };
+
+    private final int depth;
+    private final int widthMask;
+    private final AtomicLongArray counts;
+
+    /**
+     * @param depth 哈希函数个数(行数), 最多8
+     * @param width 每行的计数器个数, 会向上取成2的幂
+     */
+    public CountMinSketch(int depth, int width) {
+        this.depth = Math.min(depth, SEEDS.length);
+        int w = Integer.highestOneBit(Math.max(width - 1, 1)) << 1;
+        this.widthMask = w - 1;
+        this.counts = new AtomicLongArray(this.depth * w);
+    }
+
+    /**
+     * 计数加n, 返回加完之后的估计值
+     */
+    public long add(String key, long n) {
+        int hash = key.hashCode();
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            min = Math.min(min, counts.addAndGet(indexOf(hash, i), n));
+        }
+        return min;
+    }
+
+    public long estimate(String key) {
+        int hash = key.hashCode();
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            min = Math.min(min, counts.get(indexOf(hash, i)));
+        }
+        return min;
+    }
+
+    private int indexOf(int hash, int row) {
+        long h = (hash ^ SEEDS[row]) * 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return row * (widthMask + 1) + (int) (h & widthMask);
+    }
+}
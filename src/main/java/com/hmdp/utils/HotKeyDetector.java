@@ -0,0 +1,146 @@
+package com.hmdp.utils;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+/**
+ * 【热点key探测】
+ * 抽样计数 (Count-Min Sketch) + 滑动窗口 (当前窗口 + 按剩余比例折算的上一个窗口) + 维护top-K
+ * 窗口内访问次数超过阈值的key认为是热点key, CacheClient会把它钉在本地缓存里
+ **/
+@Component
+public class HotKeyDetector {
+
+    @Value("${hmdp.cache.hot-key.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hmdp.cache.hot-key.sample-rate:10}")
+    private int sampleRate;
+
+    @Value("${hmdp.cache.hot-key.window-seconds:10}")
+    private long windowSeconds;
+
+    @Value("${hmdp.cache.hot-key.threshold:1000}")
+    private long threshold;
+
+    @Value("${hmdp.cache.hot-key.top-k:20}")
+    private int topK;
+
+    private volatile CountMinSketch current = newSketch();
+    private volatile CountMinSketch previous = newSketch();
+    private volatile long windowStartMillis = System.currentTimeMillis();
+
+    // top-K的候选key -> 估计次数, 超过上限就裁剪
+    private final Map<String, Long> candidates = new ConcurrentHashMap<>();
+    private volatile long minCandidateCount = 0;
+
+    // 当前的热点key
+    private final Set<String> hotKeys = ConcurrentHashMap.newKeySet();
+
+    private final ScheduledExecutorService rotateExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "hot-key-window");
+        t.setDaemon(true);
+        return t;
+    });
+
+    @PostConstruct
+    private void init() {
+        rotateExecutor.scheduleAtFixedRate(this::rotate, windowSeconds, windowSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        rotateExecutor.shutdownNow();
+    }
+
+    private static CountMinSketch newSketch() {
+        return new CountMinSketch(4, 4096);
+    }
+
+    /**
+     * 记录一次访问 (按sampleRate抽样, 抽中的按sampleRate次计)
+     */
+    public void record(String key) {
+        if (!enabled || ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return;
+        }
+        current.add(key, sampleRate);
+        long count = estimate(key);
+        if (count >= threshold) {
+            hotKeys.add(key);
+        }
+        if (count > minCandidateCount) {
+            candidates.put(key, count);
+            if (candidates.size() > topK * 4) {
+                prune();
+            }
+        }
+    }
+
+    public boolean isHot(String key) {
+        return enabled && hotKeys.contains(key);
+    }
+
+    /**
+     * 访问次数最多的K个key
+     */
+    public List<HotKey> topKeys() {
+        return candidates.keySet().stream()
+                .map(key -> new HotKey(key, estimate(key), hotKeys.contains(key)))
+                .sorted(Comparator.comparingLong(HotKey::getCount).reversed())
+                .limit(topK)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 滑动窗口估计: 当前窗口的次数 + 上一个窗口还没"滑出去"的那部分
+     **/
+    private long estimate(String key) {
+        double elapsed = (System.currentTimeMillis() - windowStartMillis) / (windowSeconds * 1000.0);
+        double previousWeight = Math.max(0, 1 - elapsed);
+        return current.estimate(key) + (long) (previous.estimate(key) * previousWeight);
+    }
+
+    private synchronized void prune() {
+        if (candidates.size() <= topK * 4) {
+            return;
+        }
+        List<Map.Entry<String, Long>> sorted = candidates.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .collect(Collectors.toList());
+        // 保留前2K个, 剩下的删掉
+        List<Map.Entry<String, Long>> removed = sorted.subList(topK * 2, sorted.size());
+        minCandidateCount = sorted.get(topK * 2 - 1).getValue();
+        removed.forEach(e -> candidates.remove(e.getKey(), e.getValue()));
+    }
+
+    /**
+     * 切换窗口, 重新计算热点key
+     **/
+    private synchronized void rotate() {
+        previous = current;
+        current = newSketch();
+        windowStartMillis = System.currentTimeMillis();
+
+        minCandidateCount = 0;
+        candidates.replaceAll((key, count) -> estimate(key));
+        candidates.values().removeIf(count -> count == 0);
+        hotKeys.removeIf(key -> estimate(key) < threshold);
+    }
+
+    @Data
+    @AllArgsConstructor
+    public static class HotKey {
+        private String key;
+        private long count;
+        private boolean hot;
+    }
+}
@@ -1,5 +1,7 @@
 package com.hmdp.utils;
 
+import java.util.concurrent.TimeUnit;
+
 public interface ILock {
 
     /**
@@ -9,6 +11,14 @@ public interface ILock {
      */
     boolean tryLock(long timeoutSec);
 
+    /**
+     * 获取锁, 被别人持有时等它释放 (订阅释放通知, 不轮询)
+     * @param waitTime 最多等多久
+     * @param leaseTime 锁持有的超时时间，过期后自动释放
+     * @return true代表获取锁成功; false代表等到超时也没拿到
+     */
+    boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException;
+
     /**
      * 释放锁
      */
@@ -0,0 +1,80 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 存id的布隆过滤器 (线程安全, 只能加不能删)
+ * mightContain 返回false 说明这个id一定不存在; 返回true 说明可能存在(有一定误判率)
+ **/
+public class IdBloomFilter {
+
+    private final AtomicLongArray bits;
+    private final long bitSize;
+    private final int hashCount;
+
+    /**
+     * @param expectedInsertions 预计要放多少个id
+     * @param fpp 期望的误判率, 例如 0.01
+     */
+    public IdBloomFilter(long expectedInsertions, double fpp) {
+        long n = Math.max(expectedInsertions, 1);
+        // 位数组长度 m = -n * ln(p) / (ln2)^2
+        long m = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        // 按64位对齐
+        int words = (int) Math.min(Integer.MAX_VALUE, (m + 63) >>> 6);
+        this.bits = new AtomicLongArray(words);
+        this.bitSize = (long) words << 6;
+        // 哈希函数个数 k = m / n * ln2
+        this.hashCount = Math.max(1, (int) Math.round((double) bitSize / n * Math.log(2)));
+    }
+
+    public void put(long id) {
+        long h1 = mix(id);
+        long h2 = mix(h1 ^ 0x9e3779b97f4a7c15L);
+        for (int i = 1; i <= hashCount; i++) {
+            long index = indexOf(h1 + i * h2);
+            int word = (int) (index >>> 6);
+            long mask = 1L << index;
+            // CAS 设置这一位
+            long old;
+            do {
+                old = bits.get(word);
+                if ((old & mask) != 0) {
+                    break;
+                }
+            } while (!bits.compareAndSet(word, old, old | mask));
+        }
+    }
+
+    public boolean mightContain(long id) {
+        long h1 = mix(id);
+        long h2 = mix(h1 ^ 0x9e3779b97f4a7c15L);
+        for (int i = 1; i <= hashCount; i++) {
+            long index = indexOf(h1 + i * h2);
+            if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 用两个哈希值组合出第i个哈希值 (h1 + i * h2), 再映射到位数组的下标
+     **/
+    private long indexOf(long combinedHash) {
+        // 去掉符号位, 保证下标非负
+        return (combinedHash & Long.MAX_VALUE) % bitSize;
+    }
+
+    /**
+     * murmur3 的 fmix64, 把连续的id打散
+     **/
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,239 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.User;
+import com.hmdp.entity.Voucher;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.UserMapper;
+import com.hmdp.mapper.VoucherMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_ADD_CHANNEL;
+
+/**
+ * 【布隆过滤器 防止缓存穿透】
+ * 启动时把 店铺/优惠券/用户 的id全部加载进来, 不存在的id直接拒绝, 不用再查redis和数据库
+ * 新增数据时加进来, 并通过发布订阅通知其他节点也加上
+ * 发布订阅会丢消息 (订阅生效之前发的、断线重连期间发的), 所以:
+ * 1. 过滤器说不存在、但id比加载时最大的id还大, 再按主键查一次数据库, 存在就补进过滤器
+ *    只查 已知最大id + dbCheckWindow 以内的 (id是自增的, 丢了通知的新id不会比已知的大太多),
+ *    并且每秒最多查dbCheckPerSecond次: 从最大id往上挨个试的扫描请求打不到数据库
+ * 2. 定时从数据库重新加载一次, 补上漏掉的
+ **/
+@Slf4j
+@Component
+public class IdBloomFilters {
+
+    public static final String SHOP = "shop";
+    public static final String VOUCHER = "voucher";
+    public static final String USER = "user";
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private VoucherMapper voucherMapper;
+
+    @Resource
+    private UserMapper userMapper;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${hmdp.bloom.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hmdp.bloom.expected-insertions:1000000}")
+    private long expectedInsertions;
+
+    @Value("${hmdp.bloom.fpp:0.01}")
+    private double fpp;
+
+    @Value("${hmdp.bloom.reload-interval-minutes:60}")
+    private long reloadIntervalMinutes;
+
+    @Value("${hmdp.bloom.db-check-window:1000}")
+    private long dbCheckWindow;
+
+    @Value("${hmdp.bloom.db-check-per-second:50}")
+    private double dbCheckPerSecond;
+
+    private final Map<String, IdBloomFilter> filters = new ConcurrentHashMap<>();
+
+    // 加载时最大的id, 比它大的id过滤器里没有不代表不存在
+    private final Map<String, Long> maxLoadedIds = new ConcurrentHashMap<>();
+
+    // 已知最大的id: 加载的 + 本节点新增的 + 收到通知的
+    private final Map<String, Long> maxKnownIds = new ConcurrentHashMap<>();
+
+    // 查数据库的限流, 所有过滤器共用
+    private TokenBucket dbChecks;
+
+    private final Map<String, BaseMapper<?>> mappers = new ConcurrentHashMap<>();
+
+    // 刚查过数据库确认不存在的id, 短时间内同一个id不再查
+    private final Cache<String, Boolean> recentMisses = Caffeine.newBuilder()
+            .maximumSize(10_000)
+            .expireAfterWrite(10, TimeUnit.SECONDS)
+            .build();
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "bloom-filter-reload");
+        t.setDaemon(true);
+        return t;
+    });
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        dbChecks = new TokenBucket(dbCheckPerSecond, dbCheckPerSecond);
+        mappers.put(SHOP, shopMapper);
+        mappers.put(VOUCHER, voucherMapper);
+        mappers.put(USER, userMapper);
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> onAdd(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(BLOOM_ADD_CHANNEL));
+    }
+
+    /**
+     * 监听容器在所有@PostConstruct之后才真正订阅, 所以等应用启动完再加载;
+     * 加载完之前一律放行
+     **/
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        if (!enabled) {
+            return;
+        }
+        executor.execute(this::reload);
+        executor.scheduleWithFixedDelay(this::reload, reloadIntervalMinutes, reloadIntervalMinutes, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        executor.shutdownNow();
+    }
+
+    private void reload() {
+        try {
+            load(SHOP, shopMapper, new QueryWrapper<Shop>().select("id"));
+            load(VOUCHER, voucherMapper, new QueryWrapper<Voucher>().select("id"));
+            load(USER, userMapper, new QueryWrapper<User>().select("id"));
+        } catch (Exception e) {
+            log.error("加载布隆过滤器失败", e);
+        }
+    }
+
+    /**
+     * 建一个新的过滤器, 加载完再替换旧的
+     **/
+    private <T> void load(String name, BaseMapper<T> mapper, QueryWrapper<T> idQuery) {
+        Integer count = mapper.selectCount(null);
+        // 留出新增数据的空间
+        IdBloomFilter filter = new IdBloomFilter(Math.max(expectedInsertions, count * 2L), fpp);
+
+        List<Object> ids = mapper.selectObjs(idQuery);
+        long maxId = 0;
+        for (Object id : ids) {
+            long value = ((Number) id).longValue();
+            filter.put(value);
+            maxId = Math.max(maxId, value);
+        }
+        // 先替换再更新最大id: 中间这一小会儿新过滤器里没有的id都会去查数据库, 不会误拒
+        filters.put(name, filter);
+        maxLoadedIds.put(name, maxId);
+        maxKnownIds.merge(name, maxId, Math::max);
+        log.info("布隆过滤器[{}]加载完成, 共{}个id", name, ids.size());
+    }
+
+    /**
+     * 这个id是否可能存在
+     * @return false: 一定不存在; true: 可能存在
+     */
+    public boolean mightContain(String name, Long id) {
+        if (id == null) {
+            return false;
+        }
+        IdBloomFilter filter = filters.get(name);
+        if (!enabled || filter == null) {
+            return true;
+        }
+        if (filter.mightContain(id)) {
+            return true;
+        }
+        // 加载以后新增的id, 通知可能丢了, 查一次数据库
+        Long maxLoaded = maxLoadedIds.get(name);
+        if (maxLoaded == null || id <= maxLoaded || recentMisses.getIfPresent(name + ":" + id) != null) {
+            return false;
+        }
+        // 比已知最大id大太多的不查; 查得太频繁了也先拒绝, 等定时重新加载补上
+        if (id > maxKnownIds.getOrDefault(name, maxLoaded) + dbCheckWindow || dbChecks.tryAcquire() > 0) {
+            return false;
+        }
+        if (exists(mappers.get(name), id)) {
+            addLocal(name, id);
+            return true;
+        }
+        recentMisses.put(name + ":" + id, Boolean.TRUE);
+        return false;
+    }
+
+    private static <T> boolean exists(BaseMapper<T> mapper, Long id) {
+        return mapper.selectCount(new QueryWrapper<T>().eq("id", id)) > 0;
+    }
+
+    /**
+     * 新增数据后调用, 同时通知其他节点
+     **/
+    public void add(String name, Long id) {
+        if (!enabled || id == null) {
+            return;
+        }
+        addLocal(name, id);
+        stringRedisTemplate.convertAndSend(BLOOM_ADD_CHANNEL, name + ":" + id);
+    }
+
+    private void addLocal(String name, long id) {
+        IdBloomFilter filter = filters.get(name);
+        if (filter != null) {
+            filter.put(id);
+        }
+        maxKnownIds.merge(name, id, Math::max);
+        recentMisses.invalidate(name + ":" + id);
+    }
+
+    private void onAdd(String body) {
+        try {
+            int index = body.lastIndexOf(':');
+            addLocal(body.substring(0, index), Long.parseLong(body.substring(index + 1)));
+        } catch (Exception e) {
+            log.error("处理布隆过滤器新增消息异常: {}", body, e);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * json编解码 (hutool)  和原来StringRedisTemplate存的格式一样, 老数据都能读
+ **/
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+    }
+
+    @Override
+    public RedisData decodeRedisData(byte[] bytes, Class<?> type) {
+        // 先转RedisData, data是JSONObject, 还得再转一次
+        RedisData redisData = decode(bytes, RedisData.class);
+        JSONObject jsonObject = (JSONObject) redisData.getData();
+        redisData.setData(JSONUtil.toBean(jsonObject, type));
+        return redisData;
+    }
+
+    @Override
+    public boolean supports(byte[] bytes) {
+        // json都是可见字符开头
+        return bytes.length > 0 && bytes[0] != KryoCacheCodec.MAGIC;
+    }
+}
@@ -0,0 +1,157 @@
+package com.hmdp.utils;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.util.Pool;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Shop;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 二进制编解码 (kryo)  比json小, 解码也不用再解析字符串
+ * 格式: [MAGIC][VERSION][schema指纹 4字节][kryo数据]
+ * kryo按字段顺序读写, 不存字段名, 所以实体类一改字段, 老数据就读不对了:
+ * 写入时带上类结构的指纹, 读取时指纹对不上就当作没命中, 重新查数据库覆盖
+ * 格式本身变了就升VERSION
+ * 只认 CACHED_TYPES 里注册过的类: redis里的字节不能随便指定一个类让我们去实例化 (反序列化漏洞)
+ * 要缓存新的类型就加到 CACHED_TYPES 末尾, 否则写入时直接报错
+ **/
+public class KryoCacheCodec implements CacheCodec {
+
+    /**
+     * 开头的标记字节, json不会以这个字节开头, 用来区分两种格式
+     */
+    public static final byte MAGIC = (byte) 0xC5;
+
+    // 2: 类按注册的编号写, 不再写类名
+    private static final byte VERSION = 2;
+
+    private static final int HEADER_LENGTH = 6;
+
+    /**
+     * 允许缓存的类, 编号 = FIRST_ID + 下标. 各节点的编号必须一致, 所以只能往末尾加, 不能删也不能调顺序
+     * String、Long、Integer、Double 等kryo默认已经注册
+     */
+    private static final List<Class<?>> CACHED_TYPES = Collections.unmodifiableList(Arrays.asList(
+            RedisData.class,
+            LocalDateTime.class,
+            Shop.class,
+            UserDTO.class
+    ));
+
+    // kryo自己默认注册的编号在这之前
+    private static final int FIRST_ID = 100;
+
+    // kryo不是线程安全的, 用池子复用
+    private static final Pool<Kryo> KRYO_POOL = new Pool<Kryo>(true, false, 64) {
+        @Override
+        protected Kryo create() {
+            Kryo kryo = new Kryo();
+            kryo.setRegistrationRequired(true);
+            for (int i = 0; i < CACHED_TYPES.size(); i++) {
+                kryo.register(CACHED_TYPES.get(i), FIRST_ID + i);
+            }
+            return kryo;
+        }
+    };
+
+    private static final Pool<Output> OUTPUT_POOL = new Pool<Output>(true, false, 64) {
+        @Override
+        protected Output create() {
+            return new Output(1024, -1);
+        }
+    };
+
+    // 类 -> 类结构指纹
+    private static final Map<Class<?>, Integer> SCHEMA_CACHE = new ConcurrentHashMap<>();
+
+    @Override
+    public byte[] encode(Object value) {
+        Kryo kryo = KRYO_POOL.obtain();
+        Output output = OUTPUT_POOL.obtain();
+        try {
+            output.reset();
+            output.writeByte(MAGIC);
+            output.writeByte(VERSION);
+            output.writeInt(fingerprintOf(value));
+            kryo.writeObject(output, value);
+            return output.toBytes();
+        } finally {
+            OUTPUT_POOL.free(output);
+            KRYO_POOL.free(kryo);
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        return readIfMatches(bytes, type, schemaOf(type));
+    }
+
+    @Override
+    public RedisData decodeRedisData(byte[] bytes, Class<?> type) {
+        // data字段写的时候带了类型, 读出来就是type, 不用再转
+        return readIfMatches(bytes, RedisData.class, schemaOf(RedisData.class) * 31 + schemaOf(type));
+    }
+
+    @Override
+    public boolean supports(byte[] bytes) {
+        return bytes.length > 0 && bytes[0] == MAGIC;
+    }
+
+    private <T> T readIfMatches(byte[] bytes, Class<T> type, int expectedSchema) {
+        if (bytes.length <= HEADER_LENGTH || bytes[0] != MAGIC || bytes[1] != VERSION) {
+            return null;
+        }
+        Input input = new Input(bytes, 2, bytes.length - 2);
+        if (input.readInt() != expectedSchema) {
+            return null;
+        }
+        Kryo kryo = KRYO_POOL.obtain();
+        try {
+            return kryo.readObject(input, type);
+        } catch (KryoException e) {
+            // 没注册的类 或者 数据不完整, 当作没命中
+            return null;
+        } finally {
+            KRYO_POOL.free(kryo);
+        }
+    }
+
+    private static int fingerprintOf(Object value) {
+        if (value instanceof RedisData) {
+            Object data = ((RedisData) value).getData();
+            return schemaOf(RedisData.class) * 31 + (data == null ? 0 : schemaOf(data.getClass()));
+        }
+        return schemaOf(value.getClass());
+    }
+
+    /**
+     * 类名 + 所有字段(名字和类型) 算出来的哈希
+     **/
+    private static int schemaOf(Class<?> type) {
+        return SCHEMA_CACHE.computeIfAbsent(type, clazz -> {
+            int hash = clazz.getName().hashCode();
+            for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                        continue;
+                    }
+                    hash = hash * 31 + field.getName().hashCode();
+                    hash = hash * 31 + field.getType().getName().hashCode();
+                }
+            }
+            return hash;
+        });
+    }
+}
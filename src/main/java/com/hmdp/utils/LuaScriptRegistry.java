@@ -0,0 +1,109 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.io.IoUtil;
+import cn.hutool.core.util.StrUtil;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 【lua脚本注册表】
+ * 1. 启动时读入 classpath:lua/*.lua, 文件名就是脚本名, 并用 SCRIPT LOAD 提前加载到redis
+ * 2. 执行时只发 EVALSHA + sha1, 不用每次都把整个脚本发过去;
+ *    redis重启/清空了脚本缓存 (NOSCRIPT) 时, 自动改用 EVAL 再发一次完整脚本
+ * 3. 记录每个脚本的执行耗时 redis.script.latency{script=脚本名}
+ **/
+@Slf4j
+@Component
+public class LuaScriptRegistry {
+
+    public static final String SECKILL = "seckill";
+    public static final String SECKILL_SHARD = "seckill_shard";
+    public static final String SECKILL_STOCK = "seckill_stock";
+    public static final String SECKILL_CANCEL = "seckill_cancel";
+    public static final String UNLOCK = "unlock";
+    public static final String LEASE_RENEW = "lease_renew";
+    public static final String LOCK_ACQUIRE = "lock_acquire";
+    public static final String LOCK_RELEASE = "lock_release";
+    public static final String LOCK_RENEW = "lock_renew";
+
+    private static final String LOCATION = "classpath*:lua/*.lua";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private final Map<String, DefaultRedisScript<Long>> scripts = new ConcurrentHashMap<>();
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() throws IOException {
+        for (org.springframework.core.io.Resource resource : new PathMatchingResourcePatternResolver().getResources(LOCATION)) {
+            String name = StrUtil.removeSuffix(resource.getFilename(), ".lua");
+            DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+            try (InputStream in = resource.getInputStream()) {
+                script.setScriptText(IoUtil.read(in, StandardCharsets.UTF_8));
+            }
+            script.setResultType(Long.class);
+            scripts.put(name, script);
+            timers.put(name, Timer.builder("redis.script.latency")
+                    .description("lua脚本执行耗时")
+                    .tag("script", name)
+                    .register(meterRegistry));
+        }
+        preload();
+        log.info("lua脚本加载完成: {}", scripts.keySet());
+    }
+
+    /**
+     * SCRIPT LOAD 所有脚本. 失败也没关系, 第一次执行时会走 EVAL
+     **/
+    private void preload() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<Void>) connection -> {
+                scripts.forEach((name, script) -> connection.scriptingCommands()
+                        .scriptLoad(script.getScriptAsString().getBytes(StandardCharsets.UTF_8)));
+                return null;
+            });
+        } catch (Exception e) {
+            log.warn("预加载lua脚本失败, 第一次执行时再加载: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 执行脚本
+     * @param name 脚本名 (lua文件名, 不带后缀)
+     * @param keys 脚本要访问的key, 对应脚本里的 KEYS
+     * @param args 其他参数, 对应脚本里的 ARGV
+     */
+    public Long execute(String name, List<String> keys, Object... args) {
+        DefaultRedisScript<Long> script = scripts.get(name);
+        if (script == null) {
+            throw new IllegalArgumentException("lua脚本不存在: " + name);
+        }
+        long begin = System.nanoTime();
+        try {
+            // 先EVALSHA, NOSCRIPT时自动EVAL
+            return stringRedisTemplate.execute(script, keys, args);
+        } finally {
+            timers.get(name).record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_RESULT_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_RESULT_KEY;
+
+/**
+ * 【秒杀订单处理结果】
+ * 秒杀接口只返回订单id, 订单是异步写数据库的. 消费者写完以后把结果存到
+ * seckill:order:result:{orderId} (hash, 带过期时间), 并通过发布订阅通知所有节点,
+ * 在等这个订单结果的请求(长轮询)马上就能返回, 不用一直查数据库
+ **/
+@Slf4j
+@Component
+public class OrderResultStore {
+
+    public static final String PENDING = "PENDING";
+    public static final String SUCCESS = "SUCCESS";
+    public static final String FAILED = "FAILED";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${hmdp.seckill.order.result-ttl-minutes:30}")
+    private long ttlMinutes;
+
+    // 本节点上等待结果的请求: 订单id -> 等待中的长轮询
+    private final Map<Long, Set<Waiter>> waiters = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> onMessage(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(SECKILL_ORDER_RESULT_CHANNEL));
+    }
+
+    /**
+     * 记录一批订单的处理结果, 并通知等待的请求
+     * @param reason 失败原因, 成功时为null
+     */
+    public void save(Collection<VoucherOrder> orders, String status, String reason) {
+        if (orders.isEmpty()) {
+            return;
+        }
+        long ttlSeconds = TimeUnit.MINUTES.toSeconds(ttlMinutes);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (VoucherOrder order : orders) {
+                byte[] key = (SECKILL_ORDER_RESULT_KEY + order.getId()).getBytes(StandardCharsets.UTF_8);
+                Map<byte[], byte[]> fields = new HashMap<>();
+                fields.put(bytes("status"), bytes(status));
+                fields.put(bytes("userId"), bytes(String.valueOf(order.getUserId())));
+                fields.put(bytes("voucherId"), bytes(String.valueOf(order.getVoucherId())));
+                if (reason != null) {
+                    fields.put(bytes("reason"), bytes(reason));
+                }
+                connection.hMSet(key, fields);
+                connection.expire(key, ttlSeconds);
+            }
+            return null;
+        });
+        // 一批订单一条消息: 订单id用逗号拼起来
+        String ids = orders.stream().map(o -> String.valueOf(o.getId())).collect(Collectors.joining(","));
+        stringRedisTemplate.convertAndSend(SECKILL_ORDER_RESULT_CHANNEL, ids);
+    }
+
+    public void save(VoucherOrder order, String status, String reason) {
+        save(Collections.singletonList(order), status, reason);
+    }
+
+    /**
+     * 查询订单结果, 还没出结果时等待最多timeoutMillis毫秒 (长轮询)
+     * 超时还没结果返回 PENDING
+     */
+    public DeferredResult<Result> await(Long orderId, Long userId, long timeoutMillis) {
+        Waiter waiter = new Waiter(orderId, userId, timeoutMillis);
+        if (waiter.tryComplete()) {
+            return waiter.result;
+        }
+        if (timeoutMillis <= 0) {
+            waiter.result.setResult(statusOf(PENDING, null));
+            return waiter.result;
+        }
+
+        waiters.computeIfAbsent(orderId, k -> ConcurrentHashMap.newKeySet()).add(waiter);
+        waiter.result.onCompletion(() -> removeWaiter(waiter));
+        waiter.result.onTimeout(waiter::completeWithCurrent);
+        // 注册之前结果可能刚好写进来了, 再查一次
+        waiter.tryComplete();
+        return waiter.result;
+    }
+
+    private Map<Object, Object> get(Long orderId) {
+        return stringRedisTemplate.opsForHash().entries(SECKILL_ORDER_RESULT_KEY + orderId);
+    }
+
+    private void removeWaiter(Waiter waiter) {
+        waiters.computeIfPresent(waiter.orderId, (k, set) -> {
+            set.remove(waiter);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    private void onMessage(String body) {
+        for (String id : StrUtil.split(body, ',')) {
+            try {
+                Set<Waiter> set = waiters.get(Long.valueOf(id));
+                if (set != null) {
+                    set.forEach(Waiter::tryComplete);
+                }
+            } catch (Exception e) {
+                log.error("处理订单结果消息异常: {}", id, e);
+            }
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private class Waiter {
+        private final Long orderId;
+        private final Long userId;
+        private final DeferredResult<Result> result;
+
+        Waiter(Long orderId, Long userId, long timeoutMillis) {
+            this.orderId = orderId;
+            this.userId = userId;
+            this.result = new DeferredResult<>(timeoutMillis);
+        }
+
+        /**
+         * 已经有结果就返回
+         * @return 是否已经有结果
+         */
+        boolean tryComplete() {
+            Map<Object, Object> value = get(orderId);
+            if (value.isEmpty()) {
+                return false;
+            }
+            result.setResult(toResult(value));
+            return true;
+        }
+
+        /**
+         * 等待超时: 最后再查一次, 还没有就返回 PENDING
+         **/
+        void completeWithCurrent() {
+            Map<Object, Object> value = get(orderId);
+            result.setResult(value.isEmpty() ? statusOf(PENDING, null) : toResult(value));
+        }
+
+        private Result toResult(Map<Object, Object> value) {
+            // 只能查自己的订单
+            if (!String.valueOf(userId).equals(value.get("userId"))) {
+                return Result.fail("订单不存在");
+            }
+            return statusOf((String) value.get("status"), (String) value.get("reason"));
+        }
+    }
+
+    private static Result statusOf(String status, String reason) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("status", status);
+        data.put("reason", reason);
+        return Result.ok(data);
+    }
+}
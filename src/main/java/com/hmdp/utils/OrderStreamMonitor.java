@@ -0,0 +1,208 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.STREAM_ORDERS_GROUP;
+import static com.hmdp.utils.RedisConstants.STREAM_ORDERS_KEY;
+
+/**
+ * 订单消息队列 stream.orders 的 裁剪 + 积压指标
+ * 1. 定时 XTRIM MINID ~ <所有消费者组都确认过的最小id>, 已经处理完的消息不再占内存
+ *    只删已经确认的消息: 没投递/没确认的消息都是已经扣了库存、给用户返回了订单id的订单, 删了就丢单了
+ *    所以不用 MAXLEN 裁剪; 队列超过 max-len 只告警 (日志 + seckill.order.stream.over-limit 指标)
+ *    redis 6.2 以下不支持 MINID, 就不裁剪, 只打警告
+ * 2. 指标: 队列长度 / 消费延迟(最早一条没投递的消息等了多久) / pending-list大小 / 每批处理耗时
+ **/
+@Slf4j
+@Component
+public class OrderStreamMonitor {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.seckill.order.monitor-interval-seconds:15}")
+    private long intervalSeconds;
+
+    @Value("${hmdp.seckill.order.max-len:1000000}")
+    private long maxLen;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "order-stream-monitor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final AtomicLong length = new AtomicLong();
+    private final AtomicLong lagMillis = new AtomicLong();
+    private final AtomicLong pending = new AtomicLong();
+
+    private Timer batchTimer;
+    private DistributionSummary batchSize;
+
+    // 队列长度超过 max-len: 1, 否则0 (告警用)
+    private final AtomicLong overLimit = new AtomicLong();
+
+    // redis 6.2 以下不支持 MINID, 失败一次以后不再裁剪
+    private volatile boolean minIdSupported = true;
+
+    @PostConstruct
+    private void init() {
+        Gauge.builder("seckill.order.stream.length", length, AtomicLong::get)
+                .description("订单消息队列长度")
+                .register(meterRegistry);
+        Gauge.builder("seckill.order.stream.lag", lagMillis, AtomicLong::get)
+                .description("最早一条还没投递的订单消息已经等了多久")
+                .baseUnit("milliseconds")
+                .register(meterRegistry);
+        Gauge.builder("seckill.order.stream.pending", pending, AtomicLong::get)
+                .description("已投递未确认的订单消息数")
+                .register(meterRegistry);
+        Gauge.builder("seckill.order.stream.over-limit", overLimit, AtomicLong::get)
+                .description("订单消息队列长度超过 max-len (消费跟不上或者消费者全挂了), 1表示超过")
+                .register(meterRegistry);
+        batchTimer = Timer.builder("seckill.order.batch.latency")
+                .description("处理一批订单消息(写库 + XACK)的耗时")
+                .register(meterRegistry);
+        batchSize = DistributionSummary.builder("seckill.order.batch.size")
+                .description("每批处理的订单消息数")
+                .register(meterRegistry);
+
+        executor.scheduleWithFixedDelay(this::refresh, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        executor.shutdown();
+    }
+
+    /**
+     * 记录一批订单消息的处理耗时
+     **/
+    public void recordBatch(long nanos, int size) {
+        batchTimer.record(nanos, TimeUnit.NANOSECONDS);
+        batchSize.record(size);
+    }
+
+    private void refresh() {
+        try {
+            Long size = stringRedisTemplate.opsForStream().size(STREAM_ORDERS_KEY);
+            length.set(size == null ? 0 : size);
+            checkLimit(length.get());
+            if (length.get() == 0) {
+                lagMillis.set(0);
+                pending.set(0);
+                return;
+            }
+
+            // 所有消费者组里: 有pending就是最小的pending id, 否则是最后投递的id. 比它小的都确认过了
+            String trimId = null;
+            StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(STREAM_ORDERS_KEY);
+            for (int i = 0; i < groups.size(); i++) {
+                StreamInfo.XInfoGroup group = groups.get(i);
+                String safeId = group.lastDeliveredId();
+                if (group.pendingCount() > 0) {
+                    PendingMessagesSummary summary =
+                            stringRedisTemplate.opsForStream().pending(STREAM_ORDERS_KEY, group.groupName());
+                    safeId = summary.minMessageId();
+                }
+                if (trimId == null || compareIds(safeId, trimId) < 0) {
+                    trimId = safeId;
+                }
+                if (STREAM_ORDERS_GROUP.equals(group.groupName())) {
+                    pending.set(group.pendingCount());
+                    lagMillis.set(lagOf(group.lastDeliveredId()));
+                }
+            }
+
+            trim(trimId);
+        } catch (Exception e) {
+            log.error("刷新订单消息队列指标失败", e);
+        }
+    }
+
+    /**
+     * 最后投递的id之后的第一条消息, 它的id里带着写入时间戳
+     **/
+    private long lagOf(String lastDeliveredId) {
+        List<MapRecord<String, Object, Object>> next = stringRedisTemplate.opsForStream().range(STREAM_ORDERS_KEY,
+                Range.closed(lastDeliveredId, "+"), RedisZSetCommands.Limit.limit().count(2));
+        for (MapRecord<String, Object, Object> record : next) {
+            if (!record.getId().getValue().equals(lastDeliveredId)) {
+                return Math.max(0, System.currentTimeMillis() - record.getId().getTimestamp());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 队列太长只告警, 不删消息 (删掉的都是还没写进数据库的订单)
+     **/
+    private void checkLimit(long size) {
+        if (size > maxLen) {
+            if (overLimit.getAndSet(1) == 0) {
+                log.error("订单消息队列长度 {} 超过上限 {}, 消费跟不上或者消费者都挂了", size, maxLen);
+            }
+        } else {
+            overLimit.set(0);
+        }
+    }
+
+    /**
+     * XTRIM stream.orders MINID ~ id
+     * 只删id比它小的 (所有消费者组都已经确认过的) 消息; ~ 表示按整个节点删, 比精确裁剪便宜很多
+     **/
+    private void trim(String minId) {
+        if (minId == null || !minIdSupported) {
+            return;
+        }
+        byte[] key = STREAM_ORDERS_KEY.getBytes(StandardCharsets.UTF_8);
+        try {
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("XTRIM",
+                    key, bytes("MINID"), bytes("~"), bytes(minId)));
+        } catch (Exception e) {
+            minIdSupported = false;
+            log.warn("redis不支持 XTRIM MINID (需要6.2以上), 订单消息队列不再裁剪: {}", e.getMessage());
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * stream的id形如 时间戳-序号, 不能直接按字符串比较
+     **/
+    private static int compareIds(String a, String b) {
+        RecordId x = RecordId.of(a);
+        RecordId y = RecordId.of(b);
+        int c = Long.compare(x.getTimestamp(), y.getTimestamp());
+        return c != 0 ? c : Long.compare(x.getSequence(), y.getSequence());
+    }
+}
@@ -11,10 +11,33 @@ public class RedisConstants {
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
 
+    public static final Long CACHE_USER_TTL = 30L;
+    // 只缓存 UserDTO, 不带密码等敏感字段. (以前 cache:user: 下存的是整个User, 换了前缀不再读, 等它自己过期)
+    public static final String CACHE_USER_KEY = "cache:user:dto:";
+
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+
+    public static final String BLOOM_ADD_CHANNEL = "bloom:add";
+
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String REENTRANT_LOCK_KEY = "lock:reentrant:";
+    public static final String LOCK_FENCING_KEY = "lock:fencing:";
+    public static final String LOCK_UNLOCK_CHANNEL = "lock:unlock";
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    public static final String SECKILL_WINDOW_KEY = "seckill:window:";
+    public static final String SECKILL_PENDING_KEY = "seckill:pending:";
+    public static final String STREAM_ORDERS_KEY = "stream.orders";
+    public static final String STREAM_ORDERS_GROUP = "g1";
+    public static final String STREAM_ORDERS_DLQ_KEY = "stream.orders.dlq";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_ORDER_RESULT_KEY = "seckill:order:result:";
+    public static final String SECKILL_ORDER_RESULT_CHANNEL = "seckill:order:result";
+
+    public static final String ID_WORKER_KEY = "id:worker:";
 
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
@@ -8,4 +8,8 @@ import java.time.LocalDateTime;
 public class RedisData {
     private LocalDateTime expireTime;
     private Object data;
+    /**
+     * 上次重建这条数据(查数据库)花了多少毫秒
+     */
+    private Long rebuildMillis;
 }
@@ -1,15 +1,39 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.BooleanUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
-import java.time.LocalDateTime;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
 
 /**
  * 用于生成全局唯一id
+ * id = 时间戳(秒, 32位) << 32 | 当天的序列号(32位)
+ * 序列号有三种取法 (hmdp.id.mode):
+ * 1. redis:     每个id都 INCR icr:{prefix}:{date} 一次
+ * 2. segment:   每个节点一次 INCRBY 拿一段序列号(号段), 在本地一个个发; 剩得不多时提前异步去拿下一段
+ * 3. snowflake: 序列号 = workerId(10位) << 22 | 本节点这一秒内的序号(22位), 完全在本地生成, 不访问redis
+ *               workerId启动时从redis租一个 (id:worker:{n}), 后台定时续租; 停止时不归还, 等租约自己过期
+ *               时间戳按 UTC + 时区标准偏移 算, 不受夏令时切换影响
  **/
+@Slf4j
 @Component
 public class RedisIdWorker {
     /**
@@ -21,25 +45,320 @@ public class RedisIdWorker {
      */
     private static final int COUNT_BITS = 32;
 
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+    private static final long STANDARD_OFFSET_SECONDS = ZONE.getRules().getStandardOffset(Instant.now()).getTotalSeconds();
+    private static final long SECONDS_PER_DAY = 86400L;
+
+    /**
+     * snowflake模式: workerId的位数 和 每秒序号的位数, 加起来正好是COUNT_BITS
+     */
+    private static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = COUNT_BITS - WORKER_BITS;
+    private static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
     private StringRedisTemplate stringRedisTemplate;
 
+    @Value("${hmdp.id.mode:redis}")
+    private String mode;
+
+    @Value("${hmdp.id.segment.step:1000}")
+    private long segmentStep;           // 一个号段多少个序列号
+
+    @Value("${hmdp.id.segment.prefetch-percent:20}")
+    private long prefetchPercent;       // 号段剩下不到百分之多少时, 提前去拿下一段
+
+    @Value("${hmdp.id.snowflake.lease-seconds:600}")
+    private long leaseSeconds;          // workerId租约时长, 期间redis不可用也能继续生成id
+
+    @Value("${hmdp.id.snowflake.max-backward-seconds:5}")
+    private long maxBackwardSeconds;    // 能容忍的时钟回拨, 超过就拒绝生成id
+
+    @Resource
+    private LuaScriptRegistry luaScriptRegistry;
+
+    // keyPrefix -> 号段
+    private final Map<String, SegmentBuffer> segments = new ConcurrentHashMap<>();
+
+    // 后台线程: 异步拿下一个号段 / 续租workerId
+    private final ScheduledExecutorService backgroundExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "id-worker-background");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // snowflake模式: 租约的持有者标识、租到的workerId、本地认为租约到期的时间
+    private final String leaseOwner = ManagementFactory.getRuntimeMXBean().getName() + "-" + UUID.fastUUID().toString(true);
+    private volatile long workerId = -1;
+    private volatile long leaseExpireAt;
+
+    // snowflake模式: 上一个id用的 秒 << SEQUENCE_BITS | 序号, CAS更新
+    private final AtomicLong lastSecondAndSequence = new AtomicLong();
+
     public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
     }
 
+    @PostConstruct
+    private void init() {
+        if (!"snowflake".equals(mode)) {
+            return;
+        }
+        acquireWorkerId();
+        long renewInterval = Math.max(1, leaseSeconds / 3);
+        backgroundExecutor.scheduleWithFixedDelay(this::renewLease, renewInterval, renewInterval, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        // 不主动归还workerId, 等租约自己过期:
+        // 删掉的话别的节点可能在同一秒租到同一个workerId, 生成和这里重复的id
+        backgroundExecutor.shutdownNow();
+    }
+
     public long nextId(String keyPrefix) {
-        // 1.生成时间戳
-        LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
+        // snowflake模式 时间戳和序列号一起在本地生成 (时间戳不受夏令时影响)
+        if ("snowflake".equals(mode)) {
+            return nextSnowflakeId(snowflakeEpochSecond() - BEGIN_TIMESTAMP);
+        }
+
+        // 1.生成时间戳 (和原来一样按本地时间算, 序列号按本地日期分key)
+        long nowSecond = localEpochSecond();
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
 
         // 2.生成序列号
-        // 2.1.获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        // 2.2.自增长
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        long count;
+        if ("segment".equals(mode)) {
+            count = segments.computeIfAbsent(keyPrefix, SegmentBuffer::new).next(nowSecond / SECONDS_PER_DAY);
+        } else {
+            // 2.1.获取当前日期，精确到天
+            String date = LocalDate.ofEpochDay(nowSecond / SECONDS_PER_DAY).format(DATE_FORMATTER);
+            // 2.2.自增长
+            count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        }
 
         // 3.拼接并返回
         return timestamp << COUNT_BITS | count;
     }
+
+    /**
+     * 一次生成n个id (批量处理时用)
+     * redis模式只访问一次redis (INCRBY n), 其他模式本来就在本地生成
+     **/
+    public long[] nextIds(String keyPrefix, int n) {
+        long[] ids = new long[n];
+        if (n <= 0) {
+            return ids;
+        }
+        if (!"redis".equals(mode)) {
+            for (int i = 0; i < n; i++) {
+                ids[i] = nextId(keyPrefix);
+            }
+            return ids;
+        }
+
+        long nowSecond = localEpochSecond();
+        long timestamp = nowSecond - BEGIN_TIMESTAMP;
+        String date = LocalDate.ofEpochDay(nowSecond / SECONDS_PER_DAY).format(DATE_FORMATTER);
+        // 拿到的是这n个序列号里的最后一个
+        long last = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, n);
+        for (int i = 0; i < n; i++) {
+            ids[i] = timestamp << COUNT_BITS | (last - n + 1 + i);
+        }
+        return ids;
+    }
+
+    /**
+     * 【snowflake】 同一秒内序号自增, 用完了等下一秒
+     * 时钟回拨不超过maxBackwardSeconds时, 继续用上一个id的那一秒 (序号接着往上加); 超过了直接拒绝
+     **/
+    private long nextSnowflakeId(long timestamp) {
+        long worker = workerId;
+        if (worker < 0 || System.currentTimeMillis() > leaseExpireAt) {
+            throw new IllegalStateException("workerId租约已失效, 暂停生成id");
+        }
+        while (true) {
+            long last = lastSecondAndSequence.get();
+            long lastSecond = last >>> SEQUENCE_BITS;
+            long second = timestamp;
+            if (second < lastSecond) {
+                if (lastSecond - second > maxBackwardSeconds) {
+                    throw new IllegalStateException("时钟回拨了" + (lastSecond - second) + "秒, 拒绝生成id");
+                }
+                second = lastSecond;
+            }
+
+            long next;
+            if (second == lastSecond) {
+                if ((last & SEQUENCE_MASK) == SEQUENCE_MASK) {
+                    // 这一秒的序号用完了, 等时钟走到下一秒
+                    Thread.yield();
+                    timestamp = snowflakeEpochSecond() - BEGIN_TIMESTAMP;
+                    continue;
+                }
+                next = last + 1;
+            } else {
+                next = second << SEQUENCE_BITS;
+            }
+            if (lastSecondAndSequence.compareAndSet(last, next)) {
+                return second << COUNT_BITS | worker << SEQUENCE_BITS | (next & SEQUENCE_MASK);
+            }
+        }
+    }
+
+    /**
+     * 从随机位置开始找一个没人用的workerId:  SET id:worker:{n} owner NX EX leaseSeconds
+     * 租到以后等到下一秒才开始用: 上一个持有者的租约刚过期时, 它最后那一秒可能还在用这个workerId生成id
+     **/
+    private void acquireWorkerId() {
+        long start = ThreadLocalRandom.current().nextLong(MAX_WORKER_ID + 1);
+        for (long i = 0; i <= MAX_WORKER_ID; i++) {
+            long candidate = (start + i) & MAX_WORKER_ID;
+            // 发SET之前取时间: 本地认为的到期时间不会晚于redis里key的过期时间
+            long now = System.currentTimeMillis();
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(ID_WORKER_KEY + candidate, leaseOwner, leaseSeconds, TimeUnit.SECONDS);
+            if (BooleanUtil.isTrue(success)) {
+                leaseExpireAt = now + TimeUnit.SECONDS.toMillis(leaseSeconds);
+                waitForNextSecond();
+                workerId = candidate;
+                log.info("租到workerId: {}", candidate);
+                return;
+            }
+        }
+        throw new IllegalStateException("没有可用的workerId");
+    }
+
+    private static void waitForNextSecond() {
+        long second = System.currentTimeMillis() / 1000;
+        while (System.currentTimeMillis() / 1000 == second) {
+            try {
+                Thread.sleep(1000 - System.currentTimeMillis() % 1000 + 1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * 续租. redis暂时连不上没关系, 租约到期前还能继续生成id; 被别人拿走了(过期后被抢) 马上重新租一个
+     **/
+    private void renewLease() {
+        try {
+            long now = System.currentTimeMillis();
+            Long renewed = luaScriptRegistry.execute(LuaScriptRegistry.LEASE_RENEW,
+                    Collections.singletonList(ID_WORKER_KEY + workerId), leaseOwner, String.valueOf(leaseSeconds));
+            if (renewed != null && renewed == 1) {
+                leaseExpireAt = now + TimeUnit.SECONDS.toMillis(leaseSeconds);
+                return;
+            }
+            log.warn("workerId {} 的租约已经丢了, 重新租一个", workerId);
+            workerId = -1;
+            acquireWorkerId();
+        } catch (Exception e) {
+            log.warn("续租workerId失败: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 【snowflake】 的秒数: UTC秒数 + 时区的标准偏移 (不含夏令时), 是一个固定的平移
+     * 不能用本地时间: 夏令时结束时本地时间会倒退1小时, 远超 maxBackwardSeconds, 整整一小时生成不了id
+     * 加上固定偏移是为了和以前按本地时间生成的id接上 (没有夏令时的时区, 比如东八区, 和原来完全一样), 不会比已经发出去的id小
+     **/
+    private static long snowflakeEpochSecond() {
+        return System.currentTimeMillis() / 1000 + STANDARD_OFFSET_SECONDS;
+    }
+
+    /**
+     * 本地时间的秒数, 等于 LocalDateTime.now().toEpochSecond(ZoneOffset.UTC), 但不用创建LocalDateTime
+     **/
+    private static long localEpochSecond() {
+        long millis = System.currentTimeMillis();
+        ZoneOffset offset = ZONE.getRules().getOffset(Instant.ofEpochMilli(millis));
+        return millis / 1000 + offset.getTotalSeconds();
+    }
+
+    /**
+     * 一段序列号 [next, end), 只能在day这一天用
+     **/
+    private static class Segment {
+        final long day;
+        final AtomicLong next;
+        final long end;
+
+        Segment(long day, long first, long end) {
+            this.day = day;
+            this.next = new AtomicLong(first);
+            this.end = end;
+        }
+    }
+
+    /**
+     * 一个keyPrefix的号段: 当前在用的一段 + 提前拿好的下一段
+     **/
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private volatile CompletableFuture<Segment> prefetched;
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        long next(long day) {
+            while (true) {
+                Segment segment = current;
+                if (segment != null && segment.day == day) {
+                    long count = segment.next.getAndIncrement();
+                    if (count < segment.end) {
+                        // 剩下的刚好到低水位, 只会有一个线程走到这里
+                        if (segment.end - count == Math.max(1, segmentStep * prefetchPercent / 100)) {
+                            prefetch(day);
+                        }
+                        return count;
+                    }
+                }
+                // 用完了, 或者到了第二天 (序列号按天计数, 前一天的号段不能再用)
+                synchronized (this) {
+                    if (current == segment) {
+                        current = take(day);
+                    }
+                }
+            }
+        }
+
+        private void prefetch(long day) {
+            prefetched = CompletableFuture.supplyAsync(() -> fetch(day), backgroundExecutor);
+        }
+
+        /**
+         * 优先用提前拿好的号段, 没有(或者拿失败了、不是今天的)就同步去拿
+         **/
+        private Segment take(long day) {
+            CompletableFuture<Segment> future = prefetched;
+            prefetched = null;
+            if (future != null) {
+                try {
+                    Segment segment = future.join();
+                    if (segment.day == day) {
+                        return segment;
+                    }
+                } catch (Exception ignored) {
+                    // 异步拿失败了, 下面再同步拿一次
+                }
+            }
+            return fetch(day);
+        }
+
+        /**
+         * INCRBY icr:{prefix}:{date} step, 返回值往前step个就是这一段
+         **/
+        private Segment fetch(long day) {
+            String date = LocalDate.ofEpochDay(day).format(DATE_FORMATTER);
+            Long end = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, segmentStep);
+            return new Segment(day, end - segmentStep + 1, end + 1);
+        }
+    }
 }
@@ -0,0 +1,130 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+import static com.hmdp.utils.RedisConstants.LOCK_UNLOCK_CHANNEL;
+
+/**
+ * 【等锁】 拿不到分布式锁时等别人释放, 不轮询redis
+ * 1. 释放锁的lua脚本会往 lock:unlock 发布锁的key, 这里订阅后唤醒等这个锁的线程
+ * 2. 本节点等同一个锁的线程先在本地排队 (公平锁), 只有排在最前面的一个去redis抢锁,
+ *    抢到以后下一个才接着等, 不会一放锁所有线程一起打到redis上
+ * 3. 锁没人释放而是过期了不会有通知, 所以每次最多等到锁的剩余过期时间就再抢一次
+ **/
+@Slf4j
+@Component
+public class RedisLockWaiters {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    // 锁的key -> 本节点上等这个锁的线程
+    private final Map<String, Waiters> waiters = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> onMessage(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(LOCK_UNLOCK_CHANNEL));
+    }
+
+    /**
+     * 反复尝试加锁, 直到成功或者等了waitMillis毫秒
+     * @param key     锁的key (释放时发布的就是它)
+     * @param attempt 尝试一次加锁, 成功返回true
+     * @return 是否拿到锁
+     */
+    public boolean acquire(String key, long waitMillis, BooleanSupplier attempt) throws InterruptedException {
+        if (attempt.getAsBoolean()) {
+            return true;
+        }
+        if (waitMillis <= 0) {
+            return false;
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+        Waiters w = join(key);
+        try {
+            // 本地排队
+            if (!w.queue.tryLock(waitMillis, TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+            try {
+                while (true) {
+                    // 先清掉以前的通知再抢, 抢完到等待之间锁被释放了, 下面会马上醒
+                    w.released.drainPermits();
+                    if (attempt.getAsBoolean()) {
+                        return true;
+                    }
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    Long ttl = stringRedisTemplate.getExpire(key, TimeUnit.MILLISECONDS);
+                    if (ttl != null && ttl == -2) {
+                        // 刚好被释放了, 直接再抢
+                        continue;
+                    }
+                    long wait = ttl != null && ttl > 0 ? Math.min(ttl, remaining) : remaining;
+                    w.released.tryAcquire(wait, TimeUnit.MILLISECONDS);
+                }
+            } finally {
+                w.queue.unlock();
+            }
+        } finally {
+            leave(key, w);
+        }
+    }
+
+    private Waiters join(String key) {
+        return waiters.compute(key, (k, w) -> {
+            if (w == null) {
+                w = new Waiters();
+            }
+            w.count++;
+            return w;
+        });
+    }
+
+    private void leave(String key, Waiters waiter) {
+        waiters.computeIfPresent(key, (k, w) -> {
+            if (w != waiter) {
+                return w;
+            }
+            return --w.count == 0 ? null : w;
+        });
+    }
+
+    private void onMessage(String key) {
+        Waiters w = waiters.get(key);
+        if (w != null) {
+            w.released.release();
+        }
+    }
+
+    private static class Waiters {
+        // 本地排队, 只有拿到它的线程去redis抢锁
+        private final ReentrantLock queue = new ReentrantLock(true);
+        // 锁被释放的通知
+        private final Semaphore released = new Semaphore(0);
+        // 在等的线程数, 只在map的compute里改
+        private int count;
+    }
+}
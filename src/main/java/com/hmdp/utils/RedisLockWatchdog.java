@@ -0,0 +1,109 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 【锁看门狗】 本节点所有 ReentrantRedisLock 共用一个
+ * 1. 加锁时没指定持有时间的锁登记到这里, 完全释放时注销
+ * 2. 每 租约/3 给登记的锁续一次租约, 一次lua调用续一批 (最多50个), 不是每个锁一个定时任务
+ * 3. 续租时发现锁已经不是自己的了 (比如长时间GC导致过期被别人拿走), 不再续租并打日志
+ * 进程挂了看门狗也就停了, 锁最多再过一个租约就会自动释放
+ **/
+@Slf4j
+@Component
+public class RedisLockWatchdog {
+
+    // lock_renew.lua 返回位图, 一批不能超过double能精确表示的整数位数
+    private static final int BATCH_SIZE = 50;
+
+    @Resource
+    private LuaScriptRegistry luaScriptRegistry;
+
+    @Value("${hmdp.lock.lease-seconds:30}")
+    private long leaseSeconds;
+
+    // 锁的key -> 持有者标识. 同一个key同一时间只会有一个持有者
+    private final Map<String, String> holders = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "redis-lock-watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+
+    @PostConstruct
+    private void init() {
+        long interval = Math.max(1, TimeUnit.SECONDS.toMillis(leaseSeconds) / 3);
+        executor.scheduleWithFixedDelay(this::renew, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 默认租约 (毫秒)
+     **/
+    public long leaseMillis() {
+        return TimeUnit.SECONDS.toMillis(leaseSeconds);
+    }
+
+    public void watch(String key, String owner) {
+        holders.put(key, owner);
+    }
+
+    public void unwatch(String key, String owner) {
+        holders.remove(key, owner);
+    }
+
+    private void renew() {
+        List<String> keys = new ArrayList<>(BATCH_SIZE);
+        List<String> owners = new ArrayList<>(BATCH_SIZE);
+        for (Map.Entry<String, String> entry : holders.entrySet()) {
+            keys.add(entry.getKey());
+            owners.add(entry.getValue());
+            if (keys.size() == BATCH_SIZE) {
+                renew(keys, owners);
+                keys.clear();
+                owners.clear();
+            }
+        }
+        if (!keys.isEmpty()) {
+            renew(keys, owners);
+        }
+    }
+
+    private void renew(List<String> keys, List<String> owners) {
+        try {
+            Object[] args = new Object[owners.size() + 1];
+            args[0] = String.valueOf(leaseMillis());
+            for (int i = 0; i < owners.size(); i++) {
+                args[i + 1] = owners.get(i);
+            }
+            Long renewed = luaScriptRegistry.execute(LuaScriptRegistry.LOCK_RENEW, keys, args);
+            long bits = renewed == null ? 0 : renewed;
+            for (int i = 0; i < keys.size(); i++) {
+                if ((bits & (1L << i)) == 0 && holders.remove(keys.get(i), owners.get(i))) {
+                    log.warn("锁已经不是自己的了, 停止续租: {}", keys.get(i));
+                }
+            }
+        } catch (Exception e) {
+            // redis暂时连不上: 下一轮再续, 租约还没到期就没事
+            log.error("锁续租失败: {}", keys, e);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.LOCK_FENCING_KEY;
+import static com.hmdp.utils.RedisConstants.LOCK_UNLOCK_CHANNEL;
+import static com.hmdp.utils.RedisConstants.REENTRANT_LOCK_KEY;
+
+/**
+ * 【可重入分布式锁】 用法和 SimpleRedisLock 一样, 每次用的时候new一个
+ * 1. 锁是一个hash: lock:reentrant:{name} 持有者标识 -> 重入次数, 同一个线程可以重复加锁, 解锁次数相同才真正释放
+ * 2. tryLock() 不指定持有时间, 由 RedisLockWatchdog 自动续租, 业务执行多久都不会中途丢锁
+ *    tryLock(timeoutSec) 指定了持有时间, 到期就释放, 不续租
+ * 3. 每次拿到锁返回一个只增不减的 fencing token. 下游写数据时带上它, 拒绝token比已写入的小的请求,
+ *    这样就算锁因为长时间GC等原因过期了, 旧的持有者也改不了数据
+ * 4. tryLock(waitTime, ...) 拿不到锁时由 RedisLockWaiters 等释放通知, 不轮询
+ * 持有者标识每个线程一个uuid, 不用线程id (线程id会被新线程复用)
+ **/
+@Slf4j
+public class ReentrantRedisLock implements ILock {
+
+    private static final ThreadLocal<String> OWNER = ThreadLocal.withInitial(() -> UUID.randomUUID().toString(true));
+
+    private final LuaScriptRegistry luaScriptRegistry;
+    private final RedisLockWatchdog watchdog;
+    private final RedisLockWaiters lockWaiters;
+    private final String key;
+    private final String fencingKey;
+
+    public ReentrantRedisLock(LuaScriptRegistry luaScriptRegistry, RedisLockWatchdog watchdog,
+                              RedisLockWaiters lockWaiters, String name) {
+        this.luaScriptRegistry = luaScriptRegistry;
+        this.watchdog = watchdog;
+        this.lockWaiters = lockWaiters;
+        // hash tag: 锁和token计数器在集群的同一个slot上
+        this.key = REENTRANT_LOCK_KEY + "{" + name + "}";
+        this.fencingKey = LOCK_FENCING_KEY + "{" + name + "}";
+    }
+
+    /**
+     * 尝试获取锁, 由看门狗自动续租
+     * @return fencing token (>0); 0代表获取锁失败
+     */
+    public long tryLock() {
+        long token = acquire(watchdog.leaseMillis());
+        if (token > 0) {
+            watchdog.watch(key, OWNER.get());
+        }
+        return token;
+    }
+
+    /**
+     * 尝试获取锁, 持有timeoutSec秒后自动释放, 不续租
+     * 想要fencing token用 tryLock()
+     */
+    @Override
+    public boolean tryLock(long timeoutSec) {
+        return acquire(TimeUnit.SECONDS.toMillis(timeoutSec)) > 0;
+    }
+
+    /**
+     * 获取锁, 拿不到就等别人释放, 最多等waitTime; 由看门狗自动续租
+     * @return fencing token (>0); 0代表等到超时也没拿到
+     */
+    public long tryLock(long waitTime, TimeUnit unit) throws InterruptedException {
+        long[] token = new long[1];
+        lockWaiters.acquire(key, unit.toMillis(waitTime), () -> (token[0] = tryLock()) > 0);
+        return token[0];
+    }
+
+    /**
+     * 获取锁, 拿不到就等别人释放, 最多等waitTime; 持有leaseTime后自动释放, 不续租
+     **/
+    @Override
+    public boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+        return lockWaiters.acquire(key, unit.toMillis(waitTime), () -> acquire(unit.toMillis(leaseTime)) > 0);
+    }
+
+    private long acquire(long leaseMillis) {
+        Long token = luaScriptRegistry.execute(LuaScriptRegistry.LOCK_ACQUIRE,
+                Arrays.asList(key, fencingKey), OWNER.get(), String.valueOf(leaseMillis));
+        return token == null ? 0 : token;
+    }
+
+    /**
+     * 释放锁 (重入了几次就要释放几次)
+     **/
+    @Override
+    public void unlock() {
+        String owner = OWNER.get();
+        Long remaining = luaScriptRegistry.execute(LuaScriptRegistry.LOCK_RELEASE,
+                Collections.singletonList(key), owner, LOCK_UNLOCK_CHANNEL);
+        if (remaining == null || remaining <= 0) {
+            watchdog.unwatch(key, owner);
+        }
+        if (remaining != null && remaining < 0) {
+            log.warn("释放锁时锁已经不是自己的了 (已过期?): {}", key);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 【秒杀准入控制】 在请求打到redis之前, 本节点先把超出能力的请求拒掉
+ * 1. 每个秒杀券一个令牌桶, 限制每秒进来的请求数
+ * 2. 全局并发数限制, 同时在处理的秒杀请求不超过maxConcurrent (保护redis连接池, 不拖慢其他接口)
+ * 都不等待, 拿不到直接拒绝, 告诉客户端多久以后再试
+ **/
+@Component
+public class SeckillAdmission {
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.seckill.limit.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hmdp.seckill.limit.permits-per-second:2000}")
+    private double permitsPerSecond;
+
+    @Value("${hmdp.seckill.limit.burst:2000}")
+    private double burst;
+
+    @Value("${hmdp.seckill.limit.max-concurrent:200}")
+    private int maxConcurrent;
+
+    // 优惠券id -> 令牌桶, 一段时间没人抢的券清掉
+    private final LoadingCache<Long, TokenBucket> buckets = Caffeine.newBuilder()
+            .expireAfterAccess(10, TimeUnit.MINUTES)
+            .build(voucherId -> new TokenBucket(permitsPerSecond, burst));
+
+    private Semaphore concurrency;
+
+    private Counter admittedCounter;
+    private Counter rateLimitedCounter;
+    private Counter overloadedCounter;
+
+    @PostConstruct
+    private void init() {
+        concurrency = new Semaphore(maxConcurrent);
+        admittedCounter = counter("admitted");
+        rateLimitedCounter = counter("rate_limited");
+        overloadedCounter = counter("overloaded");
+        Gauge.builder("seckill.admission.in_flight", concurrency, s -> maxConcurrent - s.availablePermits())
+                .description("正在处理的秒杀请求数")
+                .register(meterRegistry);
+    }
+
+    private Counter counter(String result) {
+        return Counter.builder("seckill.admission")
+                .description("秒杀请求准入结果")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    /**
+     * 尝试放行一个秒杀请求, 放行了的处理完必须调用 release()
+     * @return 0: 放行; 否则是建议客户端等多少毫秒再试
+     */
+    public long tryAcquire(Long voucherId) {
+        if (!enabled) {
+            return 0;
+        }
+        if (!concurrency.tryAcquire()) {
+            overloadedCounter.increment();
+            return 1000;
+        }
+        long waitNanos = buckets.get(voucherId).tryAcquire();
+        if (waitNanos > 0) {
+            concurrency.release();
+            rateLimitedCounter.increment();
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos));
+        }
+        admittedCounter.increment();
+        return 0;
+    }
+
+    public void release() {
+        if (enabled) {
+            concurrency.release();
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 【分片库存】 一个热门秒杀券的库存拆成多个key, 分散到redis集群的不同slot上
+ * 1. 每个分片: 库存 seckill:stock:{voucherId:i} + 下单用户 seckill:order:{voucherId:i}, hash tag相同, 在同一个slot
+ * 2. 用户按id路由到固定的home分片, 一人一单只在home分片上判断
+ * 3. home分片卖完了, 依次到其他分片只扣库存; 全都扣不到才算卖完, 把home分片上占的购买资格还回去
+ * 分片数在新增秒杀券时决定, 记在 seckill:shards:<voucherId> 里, 之后不再变化
+ * 秒杀时间窗口 seckill:window:{voucherId} 每个分片也各存一份, 脚本里和库存一起原子判断
+ * 不分片时的key也带hash tag: seckill:stock:{voucherId} / seckill:order:{voucherId} / seckill:window:{voucherId}
+ * 【待发送订单】 订单消息队列不在这些slot上, 只能在脚本之后发. 脚本扣库存时在同一个slot上记一笔
+ *  seckill:pending:{voucherId(:shard)}  userId -> orderId:下单时间, 消息发出去以后删掉;
+ *  发之前进程挂了, 这一笔会一直留着, 由对账任务 (pendingOrders) 找出来补发
+ **/
+@Slf4j
+@Component
+public class SeckillStockShards {
+
+    public static final int SUCCESS = 0;
+    public static final int SOLD_OUT = 1;
+    public static final int REPEAT = 2;
+    // home分片卖完了, 要去其他分片扣库存
+    private static final int HOME_EMPTY = 3;
+    public static final int NOT_STARTED = 4;
+    public static final int ENDED = 5;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private LuaScriptRegistry luaScriptRegistry;
+
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int stockShards;
+
+    // 优惠券id -> 分片数. 分片数不会变, 过期只是为了不一直占内存
+    private final LoadingCache<Long, Integer> shardCounts = Caffeine.newBuilder()
+            .maximumSize(10_000)
+            .expireAfterAccess(10, TimeUnit.MINUTES)
+            .build(this::loadShards);
+
+    /**
+     * 新增秒杀券时写入库存和时间窗口, 分片数>1时库存平均拆到各个分片上 (余数给前面的分片)
+     * @param beginMillis 开始时间 (毫秒时间戳)
+     * @param endMillis   结束时间 (毫秒时间戳)
+     */
+    public void initStock(Long voucherId, int stock, long beginMillis, long endMillis) {
+        int shards = Math.max(1, stockShards);
+        Map<String, String> window = new HashMap<>();
+        window.put("begin", String.valueOf(beginMillis));
+        window.put("end", String.valueOf(endMillis));
+        // 不分片时脚本用这一份; 分片时给本地缓存用
+        stringRedisTemplate.opsForHash().putAll(windowKey(voucherId), window);
+        if (shards == 1) {
+            stringRedisTemplate.opsForValue().set(stockKey(voucherId), String.valueOf(stock));
+        } else {
+            for (int i = 0; i < shards; i++) {
+                int shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+                stringRedisTemplate.opsForHash().putAll(windowKey(voucherId, i), window);
+                stringRedisTemplate.opsForValue().set(stockKey(voucherId, i), String.valueOf(shardStock));
+            }
+        }
+        stringRedisTemplate.opsForValue().set(SECKILL_SHARDS_KEY + voucherId, String.valueOf(shards));
+        shardCounts.put(voucherId, shards);
+    }
+
+    /**
+     * 秒杀券的库存分成了几片, 没有记录的(老数据)是1
+     **/
+    public int shardsOf(Long voucherId) {
+        return shardCounts.get(voucherId);
+    }
+
+    /**
+     * 抢一张券: 判断时间窗口、一人一单, 扣库存, 记下待发送的订单 (不发订单消息)
+     * 发完订单消息要调 confirm, 发失败要调 cancel
+     * @return SUCCESS / SOLD_OUT / REPEAT / NOT_STARTED / ENDED
+     */
+    public int trySeckill(Long voucherId, Long userId, long orderId) {
+        int shards = shardsOf(voucherId);
+        String user = userId.toString();
+        String order = String.valueOf(orderId);
+        String createTime = String.valueOf(System.currentTimeMillis());
+        if (shards == 1) {
+            // 参数: 脚本名; 脚本用到的key(KEYS, 同一个hash tag); 其他参数值(ARGV)
+            Long res = luaScriptRegistry.execute(LuaScriptRegistry.SECKILL,
+                    Arrays.asList(stockKey(voucherId), orderKey(voucherId), windowKey(voucherId), pendingKey(voucherId)),
+                    user, order, createTime);
+            return res == null ? SOLD_OUT : res.intValue();
+        }
+
+        // 分片库存: 库存和一人一单分散在多个slot上
+        int home = Math.floorMod(Long.hashCode(userId), shards);
+        Long res = luaScriptRegistry.execute(LuaScriptRegistry.SECKILL_SHARD,
+                Arrays.asList(stockKey(voucherId, home), orderKey(voucherId, home), windowKey(voucherId, home),
+                        pendingKey(voucherId, home)),
+                user, order, createTime);
+        if (res == null || res.intValue() != HOME_EMPTY) {
+            return res == null ? SOLD_OUT : res.intValue();
+        }
+
+        // 从下一个分片开始找, 不同用户的fallthrough也分散开
+        for (int i = 1; i < shards; i++) {
+            int shard = (home + i) % shards;
+            Long taken = luaScriptRegistry.execute(LuaScriptRegistry.SECKILL_STOCK, Collections.singletonList(stockKey(voucherId, shard)));
+            if (taken != null && taken.intValue() == SUCCESS) {
+                return SUCCESS;
+            }
+        }
+
+        // 所有分片都卖完了, 还回购买资格, 再删待发送的订单
+        // (先还资格: 中间挂了的话对账会补发这一单, 由数据库的库存判断, 不会让用户再也买不了)
+        stringRedisTemplate.opsForSet().remove(orderKey(voucherId, home), user);
+        stringRedisTemplate.opsForHash().delete(pendingKey(voucherId, home), user);
+        return SOLD_OUT;
+    }
+
+    /**
+     * 订单消息已经发出去了, 删掉待发送的记录. 删失败了也没关系, 对账时再发一次, 订单id相同只会写一次
+     **/
+    public void confirm(Long voucherId, Long userId) {
+        try {
+            stringRedisTemplate.opsForHash().delete(pendingKeyOf(voucherId, userId), userId.toString());
+        } catch (Exception e) {
+            log.warn("删除待发送订单失败, voucherId: {}, userId: {}: {}", voucherId, userId, e.getMessage());
+        }
+    }
+
+    /**
+     * 【对账】 下单时间早于before还没发出去的订单 (扣了库存以后进程挂了)
+     * @return userId -> orderId
+     */
+    public Map<Long, Long> pendingOrders(Long voucherId, long before) {
+        int shards = shardsOf(voucherId);
+        List<String> keys = new ArrayList<>(shards);
+        if (shards == 1) {
+            keys.add(pendingKey(voucherId));
+        } else {
+            for (int i = 0; i < shards; i++) {
+                keys.add(pendingKey(voucherId, i));
+            }
+        }
+        Map<Long, Long> orders = new HashMap<>();
+        for (String key : keys) {
+            Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(key);
+            entries.forEach((user, value) -> {
+                // orderId:下单时间
+                String[] parts = value.toString().split(":");
+                if (Long.parseLong(parts[1]) < before) {
+                    orders.put(Long.valueOf(user.toString()), Long.valueOf(parts[0]));
+                }
+            });
+        }
+        return orders;
+    }
+
+    /**
+     * 抢到了但订单消息没发出去, 还回库存和购买资格 (不然库存少了一个, 用户也没法重试)
+     * 库存加回home分片, 不一定是当初扣的那个分片, 但所有分片加起来是对的
+     */
+    public void cancel(Long voucherId, Long userId) {
+        int shards = shardsOf(voucherId);
+        int home = Math.floorMod(Long.hashCode(userId), shards);
+        List<String> keys = shards == 1
+                ? Arrays.asList(stockKey(voucherId), orderKey(voucherId), pendingKey(voucherId))
+                : Arrays.asList(stockKey(voucherId, home), orderKey(voucherId, home), pendingKey(voucherId, home));
+        try {
+            luaScriptRegistry.execute(LuaScriptRegistry.SECKILL_CANCEL, keys, userId.toString());
+        } catch (Exception e) {
+            log.error("还回库存失败, voucherId: {}, userId: {}", voucherId, userId, e);
+        }
+    }
+
+    private Integer loadShards(Long voucherId) {
+        String shards = stringRedisTemplate.opsForValue().get(SECKILL_SHARDS_KEY + voucherId);
+        if (shards != null) {
+            return Integer.parseInt(shards);
+        }
+        migrateLegacyKeys(voucherId);
+        return 1;
+    }
+
+    /**
+     * 以前不分片的key没有hash tag (seckill:stock:<voucherId>), 改名成带hash tag的
+     * 老数据只会在单机redis上, 改完记下分片数1, 以后不再检查
+     **/
+    private void migrateLegacyKeys(Long voucherId) {
+        try {
+            renameIfPresent(SECKILL_STOCK_KEY + voucherId, stockKey(voucherId));
+            renameIfPresent(SECKILL_ORDER_KEY + voucherId, orderKey(voucherId));
+            renameIfPresent(SECKILL_WINDOW_KEY + voucherId, windowKey(voucherId));
+            stringRedisTemplate.opsForValue().setIfAbsent(SECKILL_SHARDS_KEY + voucherId, "1");
+        } catch (Exception e) {
+            // 其他节点同时在改名 (key已经没了) 之类, 下次加载再试
+            log.warn("迁移秒杀券的老key失败, voucherId: {}: {}", voucherId, e.getMessage());
+        }
+    }
+
+    private void renameIfPresent(String from, String to) {
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(from))) {
+            stringRedisTemplate.renameIfAbsent(from, to);
+        }
+    }
+
+    /**
+     * 不分片时的库存key  seckill:stock:{voucherId}
+     **/
+    public static String stockKey(Long voucherId) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + "}";
+    }
+
+    /**
+     * 不分片时的下单用户key  seckill:order:{voucherId}
+     **/
+    public static String orderKey(Long voucherId) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + "}";
+    }
+
+    /**
+     * 不分片时的时间窗口key  seckill:window:{voucherId}
+     **/
+    public static String windowKey(Long voucherId) {
+        return SECKILL_WINDOW_KEY + "{" + voucherId + "}";
+    }
+
+    private static String pendingKey(Long voucherId) {
+        return SECKILL_PENDING_KEY + "{" + voucherId + "}";
+    }
+
+    /**
+     * 这个用户的待发送订单记在哪个key上 (分片时在home分片)
+     **/
+    private String pendingKeyOf(Long voucherId, Long userId) {
+        int shards = shardsOf(voucherId);
+        return shards == 1 ? pendingKey(voucherId) : pendingKey(voucherId, Math.floorMod(Long.hashCode(userId), shards));
+    }
+
+    private static String stockKey(Long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    private static String orderKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    private static String windowKey(Long voucherId, int shard) {
+        return SECKILL_WINDOW_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    private static String pendingKey(Long voucherId, int shard) {
+        return SECKILL_PENDING_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+}
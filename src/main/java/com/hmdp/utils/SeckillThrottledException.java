@@ -0,0 +1,20 @@
+package com.hmdp.utils;
+
+/**
+ * 秒杀请求超出本节点的处理能力, 被准入控制拒绝
+ * 由 WebExceptionAdvice 转成 429 + Retry-After
+ **/
+public class SeckillThrottledException extends RuntimeException {
+
+    private final long retryAfterMillis;
+
+    public SeckillThrottledException(long retryAfterMillis) {
+        // 限流时会大量抛出, 不需要异常栈
+        super("活动太火爆, 请稍后再试", null, false, false);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
@@ -0,0 +1,59 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 【秒杀时间窗口 本地缓存】
+ * 秒杀开始前、结束后的请求在本节点直接拒绝, 不用去redis
+ * 只用来提前拒绝, 真正的判断在lua脚本里用redis的时间做 (各节点时钟可能有偏差)
+ **/
+@Component
+public class SeckillWindows {
+
+    // 没有设置时间窗口的秒杀券
+    private static final long[] NO_WINDOW = new long[0];
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 优惠券id -> {开始时间, 结束时间}. 新增秒杀券后才写到redis, 所以查不到的也只缓存一会儿
+    private final LoadingCache<Long, long[]> windows = Caffeine.newBuilder()
+            .maximumSize(10_000)
+            .expireAfterWrite(1, TimeUnit.MINUTES)
+            .build(this::loadWindow);
+
+    /**
+     * @return SeckillStockShards.SUCCESS: 在时间窗口内(或者没有设置); NOT_STARTED / ENDED
+     */
+    public int check(Long voucherId) {
+        long[] window = windows.get(voucherId);
+        if (window.length == 0) {
+            return SeckillStockShards.SUCCESS;
+        }
+        long now = System.currentTimeMillis();
+        if (now < window[0]) {
+            return SeckillStockShards.NOT_STARTED;
+        }
+        if (now > window[1]) {
+            return SeckillStockShards.ENDED;
+        }
+        return SeckillStockShards.SUCCESS;
+    }
+
+    private long[] loadWindow(Long voucherId) {
+        List<Object> values = stringRedisTemplate.opsForHash()
+                .multiGet(SeckillStockShards.windowKey(voucherId), Arrays.asList("begin", "end"));
+        if (values.get(0) == null || values.get(1) == null) {
+            return NO_WINDOW;
+        }
+        return new long[]{Long.parseLong((String) values.get(0)), Long.parseLong((String) values.get(1))};
+    }
+}
@@ -2,39 +2,34 @@ package com.hmdp.utils;
 
 import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.BooleanUtil;
-import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 
-import javax.annotation.Resource;
 import java.util.Collections;
 import java.util.concurrent.TimeUnit;
 
+import static com.hmdp.utils.RedisConstants.LOCK_UNLOCK_CHANNEL;
+
 /**
  * 为防止并发安全问题，推出的 获取锁/释放锁 操作工具类
  **/
 public class SimpleRedisLock implements ILock{
 
     private StringRedisTemplate stringRedisTemplate;
+    private LuaScriptRegistry luaScriptRegistry;    // 释放锁的lua脚本
+    private RedisLockWaiters lockWaiters;   // 等锁 (订阅释放通知)
     private String businessName;    // 业务名称（用来标识锁对应哪个业务）
 
-    public SimpleRedisLock(StringRedisTemplate redisTemplate, String name) {
+    public SimpleRedisLock(StringRedisTemplate redisTemplate, LuaScriptRegistry luaScriptRegistry,
+                           RedisLockWaiters lockWaiters, String name) {
         this.stringRedisTemplate = redisTemplate;
+        this.luaScriptRegistry = luaScriptRegistry;
+        this.lockWaiters = lockWaiters;
         this.businessName = name;
     }
 
     private static final String KEY_PREFIX = "lock:";
     private static final String ID_PREFIX = UUID.randomUUID().toString(true) + "-";  // 用uuid来唯一标识一个线程。 再加个杠为了后面在拼接线程id
 
-    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;    // 脚本语言读入
-
-    static {
-        // 提前将脚本的文件给读出来
-        UNLOCK_SCRIPT = new DefaultRedisScript<>();
-        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
-        UNLOCK_SCRIPT.setResultType(Long.class);
-    }
-
 
     /**
      * 【集群一人一单】 释放锁
@@ -42,11 +37,10 @@ public class SimpleRedisLock implements ILock{
      **/
     @Override
     public void unlock() {
-        // java使用redisTemplate提供的方法调用脚本
-        // 参数: 脚本; 参数列表值; 其他参数值
-        stringRedisTemplate.execute(UNLOCK_SCRIPT,
+        // 参数: 脚本名; 参数列表值; 其他参数值
+        luaScriptRegistry.execute(LuaScriptRegistry.UNLOCK,
                 Collections.singletonList(KEY_PREFIX + businessName),
-                ID_PREFIX + Thread.currentThread().getId());
+                ID_PREFIX + Thread.currentThread().getId(), LOCK_UNLOCK_CHANNEL);
 
         // 可以释放, 上面代码就给它释放了, 释放不了, 就啥都不用管
     }
@@ -56,12 +50,25 @@ public class SimpleRedisLock implements ILock{
      **/
     @Override
     public boolean tryLock(long timeoutSec) {
+        return tryLockOnce(timeoutSec, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 获取锁, 拿不到就等别人释放 (释放锁时unlock.lua会发布通知), 最多等waitTime
+     **/
+    @Override
+    public boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+        return lockWaiters.acquire(KEY_PREFIX + businessName, unit.toMillis(waitTime),
+                () -> tryLockOnce(leaseTime, unit));
+    }
+
+    private boolean tryLockOnce(long leaseTime, TimeUnit unit) {
         // 获取当前线程的标识
         String threadId = ID_PREFIX + Thread.currentThread().getId();
 
         // 获取锁
         Boolean res = stringRedisTemplate.opsForValue().
-                setIfAbsent(KEY_PREFIX + businessName, threadId, timeoutSec, TimeUnit.SECONDS);
+                setIfAbsent(KEY_PREFIX + businessName, threadId, leaseTime, unit);
 
         return BooleanUtil.isTrue(res);
     }
@@ -0,0 +1,104 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 【秒杀券售罄标记】 本地内存里记下哪些秒杀券已经卖完了
+ * 卖完以后的请求直接拒绝, 不用再去redis执行lua脚本
+ * 1. lua脚本返回库存不足时标记, 并通过发布订阅通知其他节点
+ * 2. 补库存时清除 (同样通知其他节点)
+ * 3. 标记带过期时间, 万一漏了清除消息, 过一会儿也会重新去redis确认
+ **/
+@Slf4j
+@Component
+public class SoldOutFlags {
+
+    private static final String SET = "set";
+    private static final String CLEAR = "clear";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${hmdp.seckill.sold-out-ttl-seconds:60}")
+    private long ttlSeconds;
+
+    // 优惠券id -> 标记的过期时间
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> onMessage(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    /**
+     * 这个秒杀券是否已经卖完
+     **/
+    public boolean isSoldOut(Long voucherId) {
+        Long expireAt = soldOut.get(voucherId);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt < System.currentTimeMillis()) {
+            soldOut.remove(voucherId, expireAt);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 标记卖完了, 同时通知其他节点
+     **/
+    public void markSoldOut(Long voucherId) {
+        // 已经标记过的不用重复广播
+        if (isSoldOut(voucherId)) {
+            return;
+        }
+        setLocal(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, SET + ":" + voucherId);
+    }
+
+    /**
+     * 补了库存, 清除标记, 同时通知其他节点
+     **/
+    public void clear(Long voucherId) {
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, CLEAR + ":" + voucherId);
+    }
+
+    private void setLocal(Long voucherId) {
+        soldOut.put(voucherId, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ttlSeconds));
+    }
+
+    private void onMessage(String body) {
+        try {
+            int index = body.indexOf(':');
+            Long voucherId = Long.valueOf(body.substring(index + 1));
+            if (SET.equals(body.substring(0, index))) {
+                setLocal(voucherId);
+            } else {
+                soldOut.remove(voucherId);
+            }
+        } catch (Exception e) {
+            log.error("处理售罄消息异常: {}", body, e);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.hmdp.utils;
+
+/**
+ * 令牌桶: 按固定速率放令牌, 最多攒capacity个, 允许短时间的突发
+ **/
+public class TokenBucket {
+
+    private final double permitsPerNano;
+    private final double capacity;
+
+    private double tokens;
+    private long lastRefillNanos;
+
+    /**
+     * @param permitsPerSecond 每秒放多少个令牌
+     * @param capacity         最多攒多少个令牌 (允许的突发量)
+     */
+    public TokenBucket(double permitsPerSecond, double capacity) {
+        this.permitsPerNano = permitsPerSecond / 1_000_000_000.0;
+        this.capacity = Math.max(capacity, 1);
+        this.tokens = this.capacity;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * 拿一个令牌, 不等待
+     * @return 0: 拿到了; 否则是还要等多少纳秒才有下一个令牌
+     */
+    public synchronized long tryAcquire() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * permitsPerNano);
+        lastRefillNanos = now;
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+        return (long) Math.ceil((1 - tokens) / permitsPerNano);
+    }
+}
@@ -0,0 +1,29 @@
+-- ----------------------------
+-- 已有数据库升级: tb_voucher_order 加唯一索引 uk_user_voucher (user_id, voucher_id)
+-- 订单改成 INSERT IGNORE 批量写入后, 一人一单只靠这个索引保证, 没有它应用启动会报错
+-- 新建的库 (hmdp.sql) 已经有这个索引, 不用执行
+-- 停掉所有应用节点后执行
+-- ----------------------------
+
+-- 1. 同一用户同一张券的重复订单, 保留最早的一单 (id最小), 其余的先备份
+CREATE TABLE IF NOT EXISTS `tb_voucher_order_duplicate` LIKE `tb_voucher_order`;
+INSERT IGNORE INTO `tb_voucher_order_duplicate`
+SELECT o1.* FROM `tb_voucher_order` o1
+JOIN `tb_voucher_order` o2
+  ON o1.`user_id` = o2.`user_id` AND o1.`voucher_id` = o2.`voucher_id` AND o1.`id` > o2.`id`;
+
+-- 2. 重复订单扣掉的秒杀库存还回去
+UPDATE `tb_seckill_voucher` v
+JOIN (
+    SELECT d.`voucher_id`, COUNT(*) AS `n` FROM `tb_voucher_order_duplicate` d
+    JOIN `tb_voucher_order` o ON o.`id` = d.`id`
+    GROUP BY d.`voucher_id`
+) t ON v.`voucher_id` = t.`voucher_id`
+SET v.`stock` = v.`stock` + t.`n`;
+
+-- 3. 删除重复订单
+DELETE o FROM `tb_voucher_order` o
+JOIN `tb_voucher_order_duplicate` d ON o.`id` = d.`id`;
+
+-- 4. 加唯一索引
+ALTER TABLE `tb_voucher_order` ADD UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`) USING BTREE;
@@ -0,0 +1,5 @@
+-- 续租: key里存的还是自己的标识才续期, 已经被别人拿走了返回0
+if(redis.call('get', KEYS[1]) == ARGV[1]) then
+    return redis.call('expire', KEYS[1], ARGV[2])
+end
+return 0
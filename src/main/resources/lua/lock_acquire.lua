@@ -0,0 +1,17 @@
+-- 可重入锁 加锁
+-- KEYS[1] 锁 (hash: 持有者标识 -> 重入次数, fencing -> 本次持有的fencing token)
+-- KEYS[2] fencing token 计数器 (永不过期, 只增不减)
+-- ARGV[1] 持有者标识  ARGV[2] 租约毫秒数
+-- 返回: fencing token; 被别人持有返回0
+if (redis.call('exists', KEYS[1]) == 0) or (redis.call('hexists', KEYS[1], ARGV[1]) == 1) then
+    local count = redis.call('hincrby', KEYS[1], ARGV[1], 1)
+    redis.call('pexpire', KEYS[1], ARGV[2])
+    if count == 1 then
+        -- 第一次拿到锁, 发一个新的token; 重入时还是原来的token
+        local token = redis.call('incr', KEYS[2])
+        redis.call('hset', KEYS[1], 'fencing', token)
+        return token
+    end
+    return tonumber(redis.call('hget', KEYS[1], 'fencing'))
+end
+return 0
@@ -0,0 +1,13 @@
+-- 可重入锁 解锁
+-- KEYS[1] 锁  ARGV[1] 持有者标识  ARGV[2] 完全释放时通知的频道
+-- 返回: 剩余重入次数, 0表示完全释放; 不是自己持有的(已过期/被别人拿走)返回-1
+if (redis.call('hexists', KEYS[1], ARGV[1]) == 0) then
+    return -1
+end
+local count = redis.call('hincrby', KEYS[1], ARGV[1], -1)
+if count > 0 then
+    return count
+end
+redis.call('del', KEYS[1])
+redis.call('publish', ARGV[2], KEYS[1])
+return 0
@@ -0,0 +1,11 @@
+-- 看门狗批量续租
+-- KEYS[i] 锁  ARGV[1] 租约毫秒数  ARGV[i+1] KEYS[i]的持有者标识
+-- 返回: 位图, 第i-1位为1表示KEYS[i]续租成功 (还是自己持有的); 一次最多传50个key
+local renewed = 0
+for i = 1, #KEYS do
+    if (redis.call('hexists', KEYS[i], ARGV[i + 1]) == 1) then
+        redis.call('pexpire', KEYS[i], ARGV[1])
+        renewed = renewed + 2 ^ (i - 1)
+    end
+end
+return renewed
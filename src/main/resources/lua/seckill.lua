@@ -0,0 +1,58 @@
+-- 1.参数列表
+-- 1.1.用户id
+local userId = ARGV[1]
+-- 1.2.订单id
+local orderId = ARGV[2]
+-- 1.3.下单时间 (毫秒时间戳, 对账时判断这条订单等了多久)
+local createTime = ARGV[3]
+
+-- 2.数据key (通过KEYS传进来, 集群模式下redis才能知道脚本要访问哪些key)
+-- 四个key带相同的hash tag {voucherId}, 在集群的同一个slot上
+-- 订单消息队列 stream.orders 是全局的一个key, 不在这个slot上, 所以XADD由调用方在脚本之后发;
+-- 脚本里同时记下一条待发送的订单, 调用方发完再删. 发之前进程挂了, 由对账任务补发 (订单id相同, 重复发也只会写一次)
+-- 2.1.库存key   seckill:stock:{voucherId}
+local stockKey = KEYS[1]
+-- 2.2.订单key   seckill:order:{voucherId}
+local orderKey = KEYS[2]
+-- 2.3.秒杀时间窗口key   seckill:window:{voucherId}  (hash: begin, end 毫秒时间戳)
+local windowKey = KEYS[3]
+-- 2.4.待发送订单key   seckill:pending:{voucherId}  (hash: userId -> orderId:时间)
+local pendingKey = KEYS[4]
+
+-- 脚本里读了redis时间又有写操作, 按命令复制 (redis 5以后默认就是)
+redis.replicate_commands()
+
+-- 3.脚本业务
+-- 3.0.判断秒杀时间窗口 (用redis的时间, 各个应用节点的时钟不一致也没关系; 没有设置窗口的不判断)
+local window = redis.call('hmget', windowKey, 'begin', 'end')
+if(window[1]) then
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if(now < tonumber(window[1])) then
+        -- 还没开始，返回4
+        return 4
+    end
+    if(now > tonumber(window[2])) then
+        -- 已经结束，返回5
+        return 5
+    end
+end
+-- 3.1.判断库存是否充足 get stockKey
+local stock = tonumber(redis.call('get', stockKey))
+if(stock == nil or stock <= 0) then
+    -- 3.2.库存不足，返回1
+    return 1
+end
+-- 3.2.判断用户是否下单 SISMEMBER orderKey userId
+if(redis.call('sismember', orderKey, userId) == 1) then
+    -- 3.3.存在，说明是重复下单，返回2
+    return 2
+end
+-- 3.4.扣库存 incrby stockKey -1
+redis.call('incrby', stockKey, -1)
+-- 3.5.下单（保存用户）sadd orderKey userId
+redis.call('sadd', orderKey, userId)
+-- 3.6.记下待发送的订单
+redis.call('hset', pendingKey, userId, orderId .. ':' .. createTime)
+
+return 0
\ No newline at end of file
@@ -5,11 +5,11 @@
 local voucherId = ARGV[1]
 local userId = ARGV[2]
 
---- 2. 数据key
+--- 2. 数据key (KEYS传进来)
 -- 库存key
-local stockKey = 'seckill:stock:' .. voucherId
+local stockKey = KEYS[1]
 -- 订单key
-local orderKey = 'seckill:order:' .. voucherId
+local orderKey = KEYS[2]
 
 --- 3. lua业务
 -- 判断库存是否充足 直接看stock是否>0
@@ -0,0 +1,21 @@
+-- 【撤销秒杀】 扣了库存、占了购买资格, 但订单消息没发出去: 把两样都还回去, 用户可以重试
+-- 库存key、下单用户key、待发送订单key带相同的hash tag, 在同一个slot上
+
+-- 1.参数列表
+-- 1.1.库存key
+local stockKey = KEYS[1]
+-- 1.2.下单用户key
+local orderKey = KEYS[2]
+-- 1.3.待发送订单key
+local pendingKey = KEYS[3]
+-- 1.4.用户id
+local userId = ARGV[1]
+
+-- 2.这条订单不用再补发了
+redis.call('hdel', pendingKey, userId)
+-- 3.购买资格还在才还库存, 重复调用不会多加
+if(redis.call('srem', orderKey, userId) == 1) then
+    redis.call('incrby', stockKey, 1)
+    return 1
+end
+return 0
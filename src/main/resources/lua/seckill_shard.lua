@@ -0,0 +1,55 @@
+-- 【分片库存】 在用户所属的分片(home分片)上: 判断一人一单 + 扣本分片库存
+-- 同一个分片的库存key和下单用户key带相同的hash tag, 在集群里落在同一个slot上
+
+-- 1.参数列表
+-- 1.1.本分片库存key   seckill:stock:{voucherId:shard}
+local stockKey = KEYS[1]
+-- 1.2.本分片下单用户key   seckill:order:{voucherId:shard}
+local orderKey = KEYS[2]
+-- 1.3.本分片秒杀时间窗口key   seckill:window:{voucherId:shard}
+local windowKey = KEYS[3]
+-- 1.4.本分片待发送订单key   seckill:pending:{voucherId:shard}  (hash: userId -> orderId:时间)
+local pendingKey = KEYS[4]
+-- 1.5.用户id
+local userId = ARGV[1]
+-- 1.6.订单id
+local orderId = ARGV[2]
+-- 1.7.下单时间 (毫秒时间戳, 对账时判断这条订单等了多久)
+local createTime = ARGV[3]
+
+-- 脚本里读了redis时间又有写操作, 按命令复制 (redis 5以后默认就是)
+redis.replicate_commands()
+
+-- 1.8.判断秒杀时间窗口 (用redis的时间, 各个应用节点的时钟不一致也没关系; 没有设置窗口的不判断)
+local window = redis.call('hmget', windowKey, 'begin', 'end')
+if(window[1]) then
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if(now < tonumber(window[1])) then
+        -- 还没开始，返回4
+        return 4
+    end
+    if(now > tonumber(window[2])) then
+        -- 已经结束，返回5
+        return 5
+    end
+end
+
+-- 2.判断用户是否下过单 (同一个用户永远路由到同一个分片, 所以只查这一个分片就够了)
+if(redis.call('sismember', orderKey, userId) == 1) then
+    -- 重复下单，返回2
+    return 2
+end
+-- 3.先占住购买资格, 并发的重复请求会在上面被拦下; 同时记下待发送的订单 (发完订单消息或者还回资格时删掉)
+redis.call('sadd', orderKey, userId)
+redis.call('hset', pendingKey, userId, orderId .. ':' .. createTime)
+
+-- 4.本分片还有库存, 直接扣
+local stock = tonumber(redis.call('get', stockKey))
+if(stock ~= nil and stock > 0) then
+    redis.call('incrby', stockKey, -1)
+    return 0
+end
+
+-- 5.本分片卖完了, 返回3, 由调用方去其他分片扣库存 (都扣不到要把购买资格还回来)
+return 3
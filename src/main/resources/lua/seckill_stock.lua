@@ -0,0 +1,13 @@
+-- 【分片库存】 home分片卖完后, 到其他分片上只扣库存
+
+-- 1.参数列表
+-- 1.1.分片库存key   seckill:stock:{voucherId:shard}
+local stockKey = KEYS[1]
+
+-- 2.有库存就扣, 返回0; 没有返回1
+local stock = tonumber(redis.call('get', stockKey))
+if(stock ~= nil and stock > 0) then
+    redis.call('incrby', stockKey, -1)
+    return 0
+end
+return 1
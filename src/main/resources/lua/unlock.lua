@@ -0,0 +1,13 @@
+-- 具体语法自己去看学习
+
+-- 比较线程标示与锁中的标示是否一致
+if(redis.call('get', KEYS[1]) ==  ARGV[1]) then
+    -- 释放锁 del key
+    local res = redis.call('del', KEYS[1])
+    -- 传了频道就通知等这个锁的节点 (ARGV[2])
+    if ARGV[2] then
+        redis.call('publish', ARGV[2], KEYS[1])
+    end
+    return res
+end
+return 0
@@ -0,0 +1,490 @@
+package com.hmdp;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheInvalidationBus;
+import com.hmdp.utils.CacheRebuildScheduler;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.KryoCacheCodec;
+import com.hmdp.utils.RedisData;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * CacheClient: 本地缓存(L1) -> redis(L2) -> 数据库
+ * redis用mock代替, 里面的值用kryo编码; 数据库查询用计数的lambda代替
+ * 同一个key同时只查一次数据库 (loadOnce): 查询的线程卡在latch上, 其他线程停在等结果上以后再放行
+ * 批量查询: MGET按key从map里取, pipeline里的命令交给mock的连接
+ **/
+class CacheClientTests {
+
+    private static final String KEY_PREFIX = "cache:shop:";
+    private static final String KEY = KEY_PREFIX + 1;
+
+    private final KryoCacheCodec codec = new KryoCacheCodec();
+    private final AtomicInteger dbQueries = new AtomicInteger();
+
+    private CacheClient cacheClient;
+    private ValueOperations<String, byte[]> valueOperations;
+    private HotKeyDetector hotKeyDetector;
+    private CacheInvalidationBus cacheInvalidationBus;
+    private final Map<FutureTask<Shop>, Thread> threads = new HashMap<>();
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        RedisTemplate<String, byte[]> byteRedisTemplate = mock(RedisTemplate.class);
+        valueOperations = mock(ValueOperations.class);
+        when(byteRedisTemplate.opsForValue()).thenReturn(valueOperations);
+        hotKeyDetector = mock(HotKeyDetector.class);
+        cacheInvalidationBus = mock(CacheInvalidationBus.class);
+
+        cacheClient = new CacheClient();
+        ReflectionTestUtils.setField(cacheClient, "byteRedisTemplate", byteRedisTemplate);
+        ReflectionTestUtils.setField(cacheClient, "stringRedisTemplate", mock(StringRedisTemplate.class));
+        ReflectionTestUtils.setField(cacheClient, "hotKeyDetector", hotKeyDetector);
+        ReflectionTestUtils.setField(cacheClient, "cacheInvalidationBus", cacheInvalidationBus);
+        ReflectionTestUtils.setField(cacheClient, "cacheRebuildScheduler", mock(CacheRebuildScheduler.class));
+        ReflectionTestUtils.setField(cacheClient, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(cacheClient, "codecName", "kryo");
+        ReflectionTestUtils.setField(cacheClient, "localCacheEnabled", true);
+        ReflectionTestUtils.setField(cacheClient, "localCacheMaximumSize", 100L);
+        ReflectionTestUtils.setField(cacheClient, "localCacheTtlSeconds", 60L);
+        ReflectionTestUtils.setField(cacheClient, "pinMaximumSize", 10L);
+        ReflectionTestUtils.setField(cacheClient, "pinTtlSeconds", 60L);
+        ReflectionTestUtils.setField(cacheClient, "singleFlightTimeoutMs", 3000L);
+        ReflectionTestUtils.setField(cacheClient, "ttlJitterPercent", 10);
+    }
+
+    private void init() {
+        ReflectionTestUtils.invokeMethod(cacheClient, "initLocalCache");
+    }
+
+    private static Shop shop(Long id, String name) {
+        Shop shop = new Shop();
+        shop.setId(id);
+        shop.setName(name);
+        return shop;
+    }
+
+    private Shop query() {
+        return cacheClient.queryWithPassThrough(KEY_PREFIX, 1L, Shop.class, id -> {
+            dbQueries.incrementAndGet();
+            return shop(id, "db");
+        }, 30L, TimeUnit.MINUTES);
+    }
+
+    @Test
+    void redisHitIsServedLocallyAfterwards() {
+        init();
+        when(valueOperations.get(KEY)).thenReturn(codec.encode(shop(1L, "redis")));
+
+        Shop first = query();
+        assertEquals("redis", first.getName());
+        // 第二次直接拿本地缓存里的同一个对象, 不再走redis
+        assertSame(first, query());
+        verify(valueOperations, times(1)).get(KEY);
+        assertEquals(0, dbQueries.get());
+    }
+
+    @Test
+    void missLoadsDbOnceAndFillsBothLevels() {
+        init();
+        assertEquals("db", query().getName());
+        assertEquals("db", query().getName());
+
+        assertEquals(1, dbQueries.get());
+        verify(valueOperations, times(1)).get(KEY);
+        verify(valueOperations).set(eq(KEY), any(byte[].class), anyLong(), eq(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void emptyValueInRedisMeansNotInDb() {
+        init();
+        when(valueOperations.get(KEY)).thenReturn(new byte[0]);
+
+        assertNull(query());
+        assertEquals(0, dbQueries.get());
+    }
+
+    @Test
+    void setReplacesLocalCopy() {
+        init();
+        when(valueOperations.get(KEY)).thenReturn(codec.encode(shop(1L, "old")));
+        assertEquals("old", query().getName());
+
+        cacheClient.set(KEY, shop(1L, "new"), 30L, TimeUnit.MINUTES);
+        when(valueOperations.get(KEY)).thenReturn(codec.encode(shop(1L, "new")));
+
+        // 本地的旧值删掉了, 重新从redis拿
+        assertEquals("new", query().getName());
+        verify(valueOperations, times(2)).get(KEY);
+    }
+
+    @Test
+    void localCacheCanBeTurnedOff() {
+        ReflectionTestUtils.setField(cacheClient, "localCacheEnabled", false);
+        init();
+        when(valueOperations.get(KEY)).thenReturn(codec.encode(shop(1L, "redis")));
+
+        query();
+        query();
+        verify(valueOperations, times(2)).get(KEY);
+    }
+
+    @Test
+    void hotKeyIsPinnedEvenWithoutLocalCache() {
+        ReflectionTestUtils.setField(cacheClient, "localCacheEnabled", false);
+        init();
+        when(hotKeyDetector.isHot(KEY)).thenReturn(true);
+        when(valueOperations.get(KEY)).thenReturn(codec.encode(shop(1L, "redis")));
+
+        query();
+        query();
+        verify(valueOperations, times(1)).get(KEY);
+        verify(hotKeyDetector, times(2)).record(KEY);
+
+        // 删除时钉住的也要删
+        cacheClient.evictLocal(KEY);
+        query();
+        verify(valueOperations, times(2)).get(KEY);
+    }
+
+    @Test
+    void writesAreBroadcastToOtherNodes() {
+        init();
+        cacheClient.set(KEY, shop(1L, "new"), 30L, TimeUnit.MINUTES);
+        cacheClient.delete(KEY_PREFIX + 2);
+        cacheClient.setWithLogicalExpire(KEY_PREFIX + 3, shop(3L, "new"), 30L, TimeUnit.MINUTES);
+
+        verify(cacheInvalidationBus).publish(KEY);
+        verify(cacheInvalidationBus).publish(KEY_PREFIX + 2);
+        verify(cacheInvalidationBus).publish(KEY_PREFIX + 3);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void invalidationFromOtherNodeOnlyEvictsLocally() {
+        init();
+        ArgumentCaptor<Consumer<String>> subscriber = ArgumentCaptor.forClass(Consumer.class);
+        verify(cacheInvalidationBus).subscribe(subscriber.capture());
+        when(valueOperations.get(KEY)).thenReturn(codec.encode(shop(1L, "old")));
+        query();
+
+        // 别的节点改了数据
+        when(valueOperations.get(KEY)).thenReturn(codec.encode(shop(1L, "new")));
+        subscriber.getValue().accept(KEY);
+
+        assertEquals("new", query().getName());
+        // 收到的通知不能再广播出去, 否则各节点之间来回发
+        verify(cacheInvalidationBus, never()).publish(anyString());
+    }
+
+    @Test
+    void concurrentMissesShareOneLoad() throws Exception {
+        init();
+        CountDownLatch release = new CountDownLatch(1);
+        FutureTask<Shop> owner = startLoad(() -> {
+            await(release);
+            return shop(1L, "db");
+        });
+        awaitInFlight(true);
+
+        List<FutureTask<Shop>> waiters = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            waiters.add(startLoad(() -> shop(1L, "second load")));
+        }
+        for (FutureTask<Shop> waiter : waiters) {
+            awaitWaiting(waiter);
+        }
+        release.countDown();
+
+        Shop loaded = owner.get(2, TimeUnit.SECONDS);
+        for (FutureTask<Shop> waiter : waiters) {
+            assertSame(loaded, waiter.get(2, TimeUnit.SECONDS));
+        }
+        awaitInFlight(false);
+    }
+
+    @Test
+    void loaderFailureReachesWaitersAndIsNotKept() throws Exception {
+        init();
+        CountDownLatch release = new CountDownLatch(1);
+        FutureTask<Shop> owner = startLoad(() -> {
+            await(release);
+            throw new IllegalStateException("db down");
+        });
+        awaitInFlight(true);
+        FutureTask<Shop> waiter = startLoad(() -> shop(1L, "second load"));
+        awaitWaiting(waiter);
+        release.countDown();
+
+        assertEquals("db down", assertThrows(ExecutionException.class, () -> owner.get(2, TimeUnit.SECONDS)).getCause().getMessage());
+        assertEquals("db down", assertThrows(ExecutionException.class, () -> waiter.get(2, TimeUnit.SECONDS)).getCause().getMessage());
+
+        // 失败的结果不留着, 下一次重新查
+        awaitInFlight(false);
+        assertEquals("retry", startLoad(() -> shop(1L, "retry")).get(2, TimeUnit.SECONDS).getName());
+    }
+
+    @Test
+    void waiterGivesUpAfterTimeout() throws Exception {
+        ReflectionTestUtils.setField(cacheClient, "singleFlightTimeoutMs", 100L);
+        init();
+        CountDownLatch release = new CountDownLatch(1);
+        FutureTask<Shop> owner = startLoad(() -> {
+            await(release);
+            return shop(1L, "slow db");
+        });
+        awaitInFlight(true);
+
+        long begin = System.nanoTime();
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> startLoad(() -> shop(1L, "second load")).get(2, TimeUnit.SECONDS));
+        assertTrue(e.getCause().getMessage().startsWith("等待数据加载超时"));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin) < 1000);
+
+        // 等待的放弃了, 查询本身不受影响
+        release.countDown();
+        assertEquals("slow db", owner.get(2, TimeUnit.SECONDS).getName());
+        awaitInFlight(false);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void batchKeepsOrderAndBackFillsMisses() {
+        init();
+        Map<String, byte[]> redis = new HashMap<>();
+        redis.put(KEY_PREFIX + 3, codec.encode(shop(3L, "redis")));
+        redis.put(KEY_PREFIX + 2, new byte[0]);    // 数据库里也没有
+        mockMultiGet(redis);
+        RedisConnection connection = mockPipeline();
+        List<Collection<Long>> dbCalls = new ArrayList<>();
+
+        Map<Long, Shop> shops = queryBatch(Arrays.asList(3L, 1L, 2L, 1L, 4L), ids -> {
+            dbCalls.add(new ArrayList<>(ids));
+            // 4 不存在
+            return Collections.singletonList(shop(1L, "db"));
+        });
+
+        assertEquals(Arrays.asList(3L, 1L), new ArrayList<>(shops.keySet()));
+        assertEquals("redis", shops.get(3L).getName());
+        assertEquals("db", shops.get(1L).getName());
+        // 没命中的一次查完
+        assertEquals(Collections.singletonList(Arrays.asList(1L, 4L)), dbCalls);
+        // 一次pipeline写回: 查到的写数据, 查不到的写空值
+        verify(connection).set(aryEq(rawKey(1L)), any(byte[].class), any(Expiration.class), eq(RedisStringCommands.SetOption.upsert()));
+        verify(connection).set(aryEq(rawKey(4L)), aryEq(new byte[0]), any(Expiration.class), eq(RedisStringCommands.SetOption.upsert()));
+
+        // 3 和 1 已经在本地缓存了
+        queryBatch(Arrays.asList(1L, 3L), ids -> {
+            throw new AssertionError("不应该再查数据库");
+        });
+        verify(valueOperations, times(1)).multiGet(any());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void logicalExpireBatchServesStaleWhileRebuilding() {
+        init();
+        Map<String, byte[]> redis = new HashMap<>();
+        redis.put(KEY_PREFIX + 1, codec.encode(redisData(shop(1L, "stale"), -1)));
+        redis.put(KEY_PREFIX + 2, codec.encode(redisData(shop(2L, "fresh"), 30)));
+        mockMultiGet(redis);
+        ValueOperations<String, String> lockOperations = mockLock();
+        CacheRebuildScheduler scheduler = (CacheRebuildScheduler) ReflectionTestUtils.getField(cacheClient, "cacheRebuildScheduler");
+        List<Runnable> rebuilds = new ArrayList<>();
+        when(scheduler.submit(anyString(), any(Runnable.class))).thenAnswer(invocation -> rebuilds.add(invocation.getArgument(1)));
+        List<Collection<Long>> dbCalls = new ArrayList<>();
+
+        Map<Long, Shop> shops = queryBatchWithLogicalExpire(Arrays.asList(1L, 2L), ids -> {
+            dbCalls.add(new ArrayList<>(ids));
+            return Collections.singletonList(shop(1L, "rebuilt"));
+        });
+
+        // 过期的照样返回旧数据, 不等重建
+        assertEquals("stale", shops.get(1L).getName());
+        assertEquals("fresh", shops.get(2L).getName());
+        assertTrue(dbCalls.isEmpty());
+        verify(lockOperations).setIfAbsent("lock:shop:1", "1", 10, TimeUnit.SECONDS);
+        verify(scheduler).submit(eq(KEY), any(Runnable.class));
+        assertEquals(1, rebuilds.size());
+
+        // 重建线程只查这一个id, 按逻辑过期格式写回
+        rebuilds.get(0).run();
+        assertEquals(Collections.singletonList(Collections.singletonList(1L)), dbCalls);
+        verify(valueOperations).set(eq(KEY), any(byte[].class));
+        StringRedisTemplate stringRedisTemplate = (StringRedisTemplate) ReflectionTestUtils.getField(cacheClient, "stringRedisTemplate");
+        verify(stringRedisTemplate).delete("lock:shop:1");
+
+        // 没过期的进了本地缓存, 过期的没有
+        redis.put(KEY_PREFIX + 1, codec.encode(redisData(shop(1L, "rebuilt"), 30)));
+        assertEquals("rebuilt", queryBatchWithLogicalExpire(Arrays.asList(1L, 2L), ids -> null).get(1L).getName());
+        verify(valueOperations).multiGet(Collections.singletonList(KEY));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void logicalExpireBatchLoadsMissingIdsTogether() {
+        init();
+        mockMultiGet(new HashMap<>());
+        RedisConnection connection = mockPipeline();
+        List<Collection<Long>> dbCalls = new ArrayList<>();
+
+        Map<Long, Shop> shops = queryBatchWithLogicalExpire(Arrays.asList(1L, 2L, 3L), ids -> {
+            dbCalls.add(new ArrayList<>(ids));
+            return Arrays.asList(shop(2L, "db"), shop(1L, "db"));
+        });
+
+        assertEquals(Arrays.asList(1L, 2L), new ArrayList<>(shops.keySet()));
+        assertEquals(Collections.singletonList(Arrays.asList(1L, 2L, 3L)), dbCalls);
+        // 逻辑过期格式: 不设redis过期时间; 查不到的不写空值
+        ArgumentCaptor<byte[]> written = ArgumentCaptor.forClass(byte[].class);
+        verify(connection).set(aryEq(rawKey(1L)), written.capture());
+        RedisData redisData = codec.decodeRedisData(written.getValue(), Shop.class);
+        assertEquals("db", ((Shop) redisData.getData()).getName());
+        assertTrue(redisData.getExpireTime().isAfter(LocalDateTime.now()));
+        verify(connection).set(aryEq(rawKey(2L)), any(byte[].class));
+        verify(connection, never()).set(aryEq(rawKey(3L)), any(byte[].class));
+        verify(connection, never()).set(aryEq(rawKey(3L)), any(byte[].class), any(Expiration.class), any(RedisStringCommands.SetOption.class));
+    }
+
+    private Map<Long, Shop> queryBatch(List<Long> ids, Function<Collection<Long>, List<Shop>> dbFallBack) {
+        return cacheClient.queryBatch(KEY_PREFIX, ids, Shop.class, dbFallBack, Shop::getId, 30L, TimeUnit.MINUTES);
+    }
+
+    private Map<Long, Shop> queryBatchWithLogicalExpire(List<Long> ids, Function<Collection<Long>, List<Shop>> dbFallBack) {
+        return cacheClient.queryBatchWithLogicalExpire(KEY_PREFIX, ids, Shop.class, "lock:shop:", dbFallBack, Shop::getId,
+                30L, TimeUnit.MINUTES);
+    }
+
+    /**
+     * MGET: 按key从map里取
+     **/
+    @SuppressWarnings("unchecked")
+    private void mockMultiGet(Map<String, byte[]> redis) {
+        when(valueOperations.multiGet(any())).thenAnswer(invocation -> ((Collection<String>) invocation.getArgument(0))
+                .stream().map(redis::get).collect(Collectors.toList()));
+    }
+
+    /**
+     * pipeline里的命令直接交给mock的连接
+     **/
+    @SuppressWarnings("unchecked")
+    private RedisConnection mockPipeline() {
+        RedisTemplate<String, byte[]> byteRedisTemplate =
+                (RedisTemplate<String, byte[]>) ReflectionTestUtils.getField(cacheClient, "byteRedisTemplate");
+        RedisConnection connection = mock(RedisConnection.class);
+        when(byteRedisTemplate.executePipelined(any(RedisCallback.class))).thenAnswer(invocation -> {
+            ((RedisCallback<Object>) invocation.getArgument(0)).doInRedis(connection);
+            return Collections.emptyList();
+        });
+        return connection;
+    }
+
+    @SuppressWarnings("unchecked")
+    private ValueOperations<String, String> mockLock() {
+        StringRedisTemplate stringRedisTemplate = (StringRedisTemplate) ReflectionTestUtils.getField(cacheClient, "stringRedisTemplate");
+        ValueOperations<String, String> lockOperations = mock(ValueOperations.class);
+        when(stringRedisTemplate.opsForValue()).thenReturn(lockOperations);
+        when(lockOperations.setIfAbsent(anyString(), anyString(), anyLong(), any(TimeUnit.class))).thenReturn(true);
+        return lockOperations;
+    }
+
+    private static RedisData redisData(Shop shop, long expireMinutes) {
+        RedisData redisData = new RedisData();
+        redisData.setData(shop);
+        redisData.setExpireTime(LocalDateTime.now().plusMinutes(expireMinutes));
+        return redisData;
+    }
+
+    private static byte[] rawKey(Long id) {
+        return (KEY_PREFIX + id).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 在新线程里调 loadOnce
+     **/
+    private FutureTask<Shop> startLoad(Supplier<Shop> loader) {
+        FutureTask<Shop> task = new FutureTask<>(() ->
+                ReflectionTestUtils.invokeMethod(cacheClient, "loadOnce", KEY, Shop.class, loader));
+        Thread thread = new Thread(task);
+        threads.put(task, thread);
+        thread.start();
+        return task;
+    }
+
+    /**
+     * 等到这个线程停在等别人的查询结果上
+     **/
+    private void awaitWaiting(FutureTask<Shop> task) throws InterruptedException {
+        Thread thread = threads.get(task);
+        long deadline = System.currentTimeMillis() + 2000;
+        while (thread.getState() != Thread.State.TIMED_WAITING) {
+            assertTrue(System.currentTimeMillis() < deadline, "not waiting: " + thread.getState());
+            Thread.sleep(1);
+        }
+    }
+
+    private void awaitInFlight(boolean inFlight) throws InterruptedException {
+        Map<?, ?> inFlightLoads = (Map<?, ?>) ReflectionTestUtils.getField(cacheClient, "inFlightLoads");
+        long deadline = System.currentTimeMillis() + 2000;
+        while (inFlightLoads.containsKey(KEY) != inFlight) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
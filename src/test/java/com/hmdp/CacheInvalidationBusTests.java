@@ -0,0 +1,113 @@
+package com.hmdp;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.utils.CacheInvalidationBus;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * 缓存失效通知: 攒一批key合并成一条消息发出去, 同一批里的重复key只发一次
+ * 收到消息时跳过自己发的, 别的节点发的每个key都交给订阅者
+ * 不调用init (不启动定时发送), 直接调 flush / onMessage
+ **/
+class CacheInvalidationBusTests {
+
+    private StringRedisTemplate stringRedisTemplate;
+    private CacheInvalidationBus bus;
+    private final List<String> evicted = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        stringRedisTemplate = mock(StringRedisTemplate.class);
+        bus = new CacheInvalidationBus();
+        ReflectionTestUtils.setField(bus, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(bus, "batchSize", 2);
+        bus.subscribe(evicted::add);
+    }
+
+    private List<JSONObject> sentMessages(int count) {
+        ArgumentCaptor<String> body = ArgumentCaptor.forClass(String.class);
+        verify(stringRedisTemplate, times(count)).convertAndSend(eq(CACHE_INVALIDATE_CHANNEL), body.capture());
+        List<JSONObject> messages = new ArrayList<>();
+        body.getAllValues().forEach(b -> messages.add(JSONUtil.parseObj(b)));
+        return messages;
+    }
+
+    @Test
+    void keysAreBatchedAndDeduplicated() {
+        bus.publish("cache:shop:1");
+        bus.publish("cache:shop:1");
+        bus.publish("cache:shop:2");
+        bus.publish("cache:shop:3");
+        ReflectionTestUtils.invokeMethod(bus, "flush");
+
+        // batchSize 2: [1, 1] [2, 3]
+        List<JSONObject> messages = sentMessages(2);
+        assertEquals(Collections.singletonList("cache:shop:1"), messages.get(0).getJSONArray("keys").toList(String.class));
+        assertEquals(Arrays.asList("cache:shop:2", "cache:shop:3"), messages.get(1).getJSONArray("keys").toList(String.class));
+        assertEquals(nodeId(), messages.get(0).getStr("node"));
+
+        // 发完了, 再flush不会重复发
+        ReflectionTestUtils.invokeMethod(bus, "flush");
+        sentMessages(2);
+    }
+
+    @Test
+    void nothingIsSentWithoutKeys() {
+        ReflectionTestUtils.invokeMethod(bus, "flush");
+        verify(stringRedisTemplate, never()).convertAndSend(anyString(), anyString());
+    }
+
+    @Test
+    void ownMessagesAreSkipped() {
+        ReflectionTestUtils.invokeMethod(bus, "onMessage", message(nodeId(), "cache:shop:1"));
+        assertTrue(evicted.isEmpty());
+    }
+
+    @Test
+    void otherNodesMessagesReachSubscribers() {
+        List<String> second = new ArrayList<>();
+        bus.subscribe(second::add);
+
+        ReflectionTestUtils.invokeMethod(bus, "onMessage", message("other-node", "cache:shop:1", "cache:shop:2"));
+
+        assertEquals(Arrays.asList("cache:shop:1", "cache:shop:2"), evicted);
+        assertEquals(evicted, second);
+    }
+
+    @Test
+    void malformedMessageIsIgnored() {
+        ReflectionTestUtils.invokeMethod(bus, "onMessage", "not json");
+        assertTrue(evicted.isEmpty());
+    }
+
+    private static String nodeId() {
+        return (String) ReflectionTestUtils.getField(CacheInvalidationBus.class, "NODE_ID");
+    }
+
+    private static String message(String node, String... keys) {
+        JSONObject message = new JSONObject();
+        message.set("node", node);
+        message.set("keys", Arrays.asList(keys));
+        return message.toString();
+    }
+}
@@ -0,0 +1,55 @@
+package com.hmdp;
+
+import com.hmdp.utils.CountMinSketch;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Count-Min Sketch: 只会多估不会少估; key不多时基本是准的; 热点key能从大量冷key里分出来
+ **/
+class CountMinSketchTests {
+
+    @Test
+    void exactWhenFewKeys() {
+        CountMinSketch sketch = new CountMinSketch(4, 1024);
+        assertEquals(3, sketch.add("cache:shop:1", 3));
+        assertEquals(5, sketch.add("cache:shop:1", 2));
+        sketch.add("cache:shop:2", 1);
+        assertEquals(5, sketch.estimate("cache:shop:1"));
+        assertEquals(1, sketch.estimate("cache:shop:2"));
+        assertEquals(0, sketch.estimate("cache:shop:3"));
+    }
+
+    @Test
+    void neverUnderestimates() {
+        // 计数器比key少很多, 一定有冲突
+        CountMinSketch sketch = new CountMinSketch(4, 256);
+        Map<String, Long> actual = new HashMap<>();
+        for (int i = 0; i < 20_000; i++) {
+            String key = "cache:shop:" + (i * 31 % 5000);
+            sketch.add(key, 1);
+            actual.merge(key, 1L, Long::sum);
+        }
+        actual.forEach((key, count) -> assertTrue(sketch.estimate(key) >= count, key));
+    }
+
+    @Test
+    void hotKeyStandsOut() {
+        CountMinSketch sketch = new CountMinSketch(4, 1024);
+        for (int i = 0; i < 10_000; i++) {
+            sketch.add("cache:shop:" + i, 1);
+        }
+        for (int i = 0; i < 1000; i++) {
+            sketch.add("cache:shop:hot", 1);
+        }
+        long hot = sketch.estimate("cache:shop:hot");
+        assertTrue(hot >= 1000);
+        // 1万次冷访问平摊到1024个计数器, 每个大约10, 取4行的最小值
+        assertTrue(sketch.estimate("cache:shop:1") < hot / 10);
+    }
+}
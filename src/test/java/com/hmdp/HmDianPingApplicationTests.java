@@ -1,28 +1,34 @@
 package com.hmdp;
 
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.impl.ShopServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.KryoCacheCodec;
 import com.hmdp.utils.RedisData;
 import com.hmdp.utils.RedisIdWorker;
 import com.hmdp.utils.UserHolder;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
 
 import javax.annotation.Resource;
 
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 
 @SpringBootTest
 class HmDianPingApplicationTests {
@@ -33,6 +39,9 @@ class HmDianPingApplicationTests {
     @Autowired
     StringRedisTemplate stringRedisTemplate;
 
+    @Autowired
+    RedisTemplate<String, byte[]> byteRedisTemplate;
+
     @Resource
     CacheClient cacheClient;
 
@@ -45,11 +54,12 @@ class HmDianPingApplicationTests {
     @Test
     void testIdWorker() throws InterruptedException {
         CountDownLatch latch = new CountDownLatch(300);
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
 
+        // 不再逐个打印id (测出来的主要是System.out的耗时), 只检查有没有重复; 性能对比见 RedisIdWorkerBenchmark
         Runnable task = () -> {
             for (int i = 0; i < 100; i++) {
-                long id = redisIdWorker.nextId("order");
-                System.out.println("id = " + id);
+                ids.add(redisIdWorker.nextId("order"));
             }
             latch.countDown();
         };
@@ -60,6 +70,13 @@ class HmDianPingApplicationTests {
         latch.await();
         long end = System.currentTimeMillis();
         System.out.println("time = " + (end - begin));
+        assertEquals(30000, ids.size());
+    }
+
+    @Test
+    void testNextIds() {
+        long[] ids = redisIdWorker.nextIds("order", 100);
+        assertEquals(100, Arrays.stream(ids).distinct().count());
     }
 
     @Test
@@ -70,19 +87,25 @@ class HmDianPingApplicationTests {
 
     }
 
+    @Test
+    public void testWarmUpShopCache() {
+        // 全部店铺预热到redis, 过期时间错开
+        shopService.warmUpShopCache();
+    }
+
     @Test
     public void testRedisData() {
         Long id = 1L;
         String cacheShopKey = CACHE_SHOP_KEY + id;
-        // 从Redis查询商铺缓存
-        String redisJsonDataShop = stringRedisTemplate.opsForValue().get(cacheShopKey);
+        // 从Redis查询商铺缓存 (缓存现在默认是kryo二进制格式, 按字节读)
+        byte[] redisDataShop = byteRedisTemplate.opsForValue().get(cacheShopKey);
 
         // 命中
         // 判断缓存是否过期, 未过期, 直接拿到并返回新数据
         // 先转为对象
-        RedisData redisData = JSONUtil.toBean(redisJsonDataShop, RedisData.class);
-        JSONObject shopJsonObject = (JSONObject) redisData.getData();
-        Shop redisShop = JSONUtil.toBean(shopJsonObject, Shop.class);
+        CacheCodec codec = new KryoCacheCodec().supports(redisDataShop) ? new KryoCacheCodec() : new JsonCacheCodec();
+        RedisData redisData = codec.decodeRedisData(redisDataShop, Shop.class);
+        Shop redisShop = (Shop) redisData.getData();
 
         System.out.println(redisShop);
     }
@@ -0,0 +1,51 @@
+package com.hmdp;
+
+import com.hmdp.utils.IdBloomFilter;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 布隆过滤器: 放进去的id一定能查到; 没放的id误判率接近设定值
+ **/
+class IdBloomFilterTests {
+
+    private static final int N = 100_000;
+    private static final double FPP = 0.01;
+
+    @Test
+    void neverMissesInsertedIds() {
+        IdBloomFilter filter = new IdBloomFilter(N, FPP);
+        for (long id = 1; id <= N; id++) {
+            filter.put(id);
+        }
+        for (long id = 1; id <= N; id++) {
+            assertTrue(filter.mightContain(id), "id " + id);
+        }
+    }
+
+    @Test
+    void falsePositiveRateIsNearConfigured() {
+        IdBloomFilter filter = new IdBloomFilter(N, FPP);
+        for (long id = 1; id <= N; id++) {
+            filter.put(id);
+        }
+        // 连续的id 和 没放进去的id 都要打散, 误判率不能比设定值高太多
+        int falsePositives = 0;
+        for (long id = N + 1; id <= 2L * N; id++) {
+            if (filter.mightContain(id)) {
+                falsePositives++;
+            }
+        }
+        double rate = (double) falsePositives / N;
+        assertTrue(rate < FPP * 2, "误判率 " + rate);
+    }
+
+    @Test
+    void emptyFilterContainsNothing() {
+        IdBloomFilter filter = new IdBloomFilter(1000, FPP);
+        assertFalse(filter.mightContain(1L));
+        assertFalse(filter.mightContain(-1L));
+    }
+}
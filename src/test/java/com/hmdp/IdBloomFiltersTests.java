@@ -0,0 +1,111 @@
+package com.hmdp;
+
+import com.baomidou.mybatisplus.core.conditions.Wrapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.UserMapper;
+import com.hmdp.mapper.VoucherMapper;
+import com.hmdp.utils.IdBloomFilters;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.verification.VerificationMode;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * 布隆过滤器的数据库兜底: 丢了通知的新id能查到; 从最大id往上扫描的请求只有少量打到数据库
+ * 店铺表里有id 1~3
+ **/
+class IdBloomFiltersTests {
+
+    private ShopMapper shopMapper;
+    private IdBloomFilters filters;
+
+    @BeforeEach
+    void setUp() {
+        shopMapper = mock(ShopMapper.class);
+        when(shopMapper.selectCount(isNull())).thenReturn(3);
+        when(shopMapper.selectObjs(any())).thenReturn(Arrays.asList(1L, 2L, 3L));
+
+        filters = new IdBloomFilters();
+        ReflectionTestUtils.setField(filters, "shopMapper", shopMapper);
+        ReflectionTestUtils.setField(filters, "voucherMapper", mock(VoucherMapper.class));
+        ReflectionTestUtils.setField(filters, "userMapper", mock(UserMapper.class));
+        ReflectionTestUtils.setField(filters, "stringRedisTemplate", mock(StringRedisTemplate.class));
+        ReflectionTestUtils.setField(filters, "redisMessageListenerContainer", mock(RedisMessageListenerContainer.class));
+        ReflectionTestUtils.setField(filters, "enabled", true);
+        ReflectionTestUtils.setField(filters, "expectedInsertions", 1000L);
+        ReflectionTestUtils.setField(filters, "fpp", 0.01);
+        ReflectionTestUtils.setField(filters, "dbCheckWindow", 100L);
+        ReflectionTestUtils.setField(filters, "dbCheckPerSecond", 1000.0);
+        ReflectionTestUtils.invokeMethod(filters, "init");
+        ReflectionTestUtils.invokeMethod(filters, "reload");
+    }
+
+    @SuppressWarnings("unchecked")
+    private void verifyDbChecks(VerificationMode mode) {
+        verify(shopMapper, mode).selectCount(any(Wrapper.class));
+    }
+
+    @Test
+    void loadedIdsPassWithoutDb() {
+        assertTrue(filters.mightContain(IdBloomFilters.SHOP, 2L));
+        assertFalse(filters.mightContain(IdBloomFilters.SHOP, null));
+        verifyDbChecks(never());
+    }
+
+    @Test
+    void newIdWithLostNotificationIsFoundInDb() {
+        // id 4 是加载以后别的节点新增的, 通知丢了
+        when(shopMapper.selectCount(any(Wrapper.class))).thenReturn(1);
+        assertTrue(filters.mightContain(IdBloomFilters.SHOP, 4L));
+        // 补进过滤器了, 第二次不再查
+        assertTrue(filters.mightContain(IdBloomFilters.SHOP, 4L));
+        verifyDbChecks(times(1));
+    }
+
+    @Test
+    void scanAboveMaxIdOnlyChecksWindow() {
+        for (long id = 4; id < 10_004; id++) {
+            assertFalse(filters.mightContain(IdBloomFilters.SHOP, id));
+        }
+        // 只有 3 < id <= 3 + 100 的会去查
+        verifyDbChecks(atMost(100));
+    }
+
+    @Test
+    void addedIdsMoveTheWindow() {
+        // 本节点新增了id 500, 它附近的新id (比如丢了通知的499) 也能查到
+        filters.add(IdBloomFilters.SHOP, 500L);
+        when(shopMapper.selectCount(any(Wrapper.class))).thenReturn(1);
+        assertTrue(filters.mightContain(IdBloomFilters.SHOP, 499L));
+        assertTrue(filters.mightContain(IdBloomFilters.SHOP, 550L));
+        assertFalse(filters.mightContain(IdBloomFilters.SHOP, 700L));
+        verifyDbChecks(times(2));
+    }
+
+    @Test
+    void dbChecksAreRateLimited() {
+        ReflectionTestUtils.setField(filters, "dbCheckWindow", 1_000_000L);
+        ReflectionTestUtils.setField(filters, "dbCheckPerSecond", 5.0);
+        ReflectionTestUtils.invokeMethod(filters, "init");
+        for (long id = 4; id < 1004; id++) {
+            filters.mightContain(IdBloomFilters.SHOP, id);
+        }
+        // 桶里攒了5个, 循环期间最多再补一两个
+        verifyDbChecks(atMost(7));
+    }
+}
@@ -0,0 +1,111 @@
+package com.hmdp;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Output;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.KryoCacheCodec;
+import com.hmdp.utils.RedisData;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * kryo编解码: 注册过的类能原样读回来; 结构对不上、没注册的类、坏数据都当作没命中
+ **/
+class KryoCacheCodecTests {
+
+    private final KryoCacheCodec codec = new KryoCacheCodec();
+
+    private static Shop shop() {
+        Shop shop = new Shop();
+        shop.setId(1L);
+        shop.setName("103茶餐厅");
+        shop.setTypeId(1L);
+        shop.setX(120.149192);
+        shop.setY(30.316078);
+        shop.setAvgPrice(80L);
+        shop.setScore(37);
+        shop.setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39));
+        return shop;
+    }
+
+    @Test
+    void roundTripsCachedTypes() {
+        Shop shop = shop();
+        byte[] bytes = codec.encode(shop);
+        assertTrue(codec.supports(bytes));
+        assertEquals(shop, codec.decode(bytes, Shop.class));
+
+        UserDTO user = new UserDTO();
+        user.setId(2L);
+        user.setNickName("user2");
+        assertEquals(user, codec.decode(codec.encode(user), UserDTO.class));
+    }
+
+    @Test
+    void roundTripsLogicalExpireData() {
+        RedisData redisData = new RedisData();
+        redisData.setData(shop());
+        redisData.setExpireTime(LocalDateTime.now().plusMinutes(30));
+        redisData.setRebuildMillis(12L);
+
+        RedisData decoded = codec.decodeRedisData(codec.encode(redisData), Shop.class);
+        assertEquals(redisData, decoded);
+        assertTrue(decoded.getData() instanceof Shop);
+    }
+
+    @Test
+    void otherSchemaIsAMiss() {
+        // 按别的类型读 (相当于实体类改了字段), 指纹对不上
+        assertNull(codec.decode(codec.encode(shop()), UserDTO.class));
+    }
+
+    @Test
+    void jsonIsNotSupported() {
+        assertFalse(codec.supports("{\"id\":1}".getBytes(StandardCharsets.UTF_8)));
+        assertNull(codec.decode("{\"id\":1}".getBytes(StandardCharsets.UTF_8), Shop.class));
+    }
+
+    @Test
+    void refusesToEncodeUnregisteredType() {
+        assertThrows(IllegalArgumentException.class, () -> codec.encode(new ArrayList<>()));
+    }
+
+    @Test
+    void unregisteredClassFromRedisIsAMiss() {
+        // 伪造一条数据: 头部和正常的一样, data字段写成一个没注册的类 (按类名写)
+        RedisData redisData = new RedisData();
+        redisData.setData(shop());
+        redisData.setExpireTime(LocalDateTime.now());
+        byte[] valid = codec.encode(redisData);
+
+        Kryo kryo = new Kryo();
+        kryo.setRegistrationRequired(false);
+        kryo.register(RedisData.class, 100);
+        kryo.register(LocalDateTime.class, 101);
+        RedisData forged = new RedisData();
+        forged.setData(new ArrayList<>(Arrays.asList("a", "b")));
+        forged.setExpireTime(LocalDateTime.now());
+        Output output = new Output(256, -1);
+        output.writeBytes(valid, 0, 6);
+        kryo.writeObject(output, forged);
+
+        assertNull(codec.decodeRedisData(output.toBytes(), Shop.class));
+    }
+
+    @Test
+    void truncatedDataIsAMiss() {
+        byte[] bytes = codec.encode(shop());
+        assertNull(codec.decode(Arrays.copyOf(bytes, bytes.length / 2), Shop.class));
+    }
+}
@@ -0,0 +1,102 @@
+package com.hmdp;
+
+import com.hmdp.Interceptor.LoginInterceptor;
+import com.hmdp.Interceptor.TokenRefreshInterceptor;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.UserHolder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * 登录拦截器: 异步请求 (DeferredResult) 结束后, 线程上不能残留上一个用户
+ * MockMvc 在当前线程上处理请求, 连续两个请求就相当于同一个tomcat线程先后处理
+ **/
+class LoginInterceptorTests {
+
+    private static final String TOKEN = "token-1";
+
+    private MockMvc mockMvc;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+        HashOperations<String, Object, Object> hashOperations = mock(HashOperations.class);
+        when(stringRedisTemplate.opsForHash()).thenReturn(hashOperations);
+        Map<Object, Object> user = new HashMap<>();
+        user.put("id", "1");
+        user.put("nickName", "user1");
+        when(hashOperations.entries(anyString())).thenReturn(new HashMap<>());
+        when(hashOperations.entries(RedisConstants.LOGIN_USER_KEY + TOKEN)).thenReturn(user);
+
+        mockMvc = MockMvcBuilders.standaloneSetup(new TestController())
+                .addInterceptors(new TokenRefreshInterceptor(stringRedisTemplate), new LoginInterceptor())
+                .build();
+    }
+
+    @AfterEach
+    void tearDown() {
+        UserHolder.removeUser();
+    }
+
+    @Test
+    void anonymousRequestAfterAsyncRequestIsRejected() throws Exception {
+        // 1. 登录用户发起长轮询, 请求进入异步处理
+        mockMvc.perform(get("/async").header("authorization", TOKEN))
+                .andExpect(request().asyncStarted());
+        assertNull(UserHolder.getUser());
+
+        // 2. 同一个线程上的下一个请求没带token, 必须是401
+        mockMvc.perform(get("/sync"))
+                .andExpect(status().isUnauthorized());
+    }
+
+    @Test
+    void staleUserIsClearedBeforeNextRequest() throws Exception {
+        // 线程上残留了用户 (比如某个路径没走到清理), 没带token的请求也不能用它
+        UserHolder.saveUser(new UserDTO());
+        mockMvc.perform(get("/sync"))
+                .andExpect(status().isUnauthorized());
+    }
+
+    @Test
+    void loggedInRequestPasses() throws Exception {
+        mockMvc.perform(get("/sync").header("authorization", TOKEN))
+                .andExpect(status().isOk());
+    }
+
+    @RestController
+    static class TestController {
+
+        @GetMapping("/async")
+        public DeferredResult<Result> async() {
+            return new DeferredResult<>(60_000L);
+        }
+
+        @GetMapping("/sync")
+        public Result sync() {
+            return Result.ok();
+        }
+    }
+}
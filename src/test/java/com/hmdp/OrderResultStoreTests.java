@@ -0,0 +1,160 @@
+package com.hmdp;
+
+import com.hmdp.dto.Result;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.utils.OrderResultStore;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.DeferredResultProcessingInterceptor;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_RESULT_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_RESULT_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * 订单结果的长轮询: 已经有结果马上返回; 结果通知到了马上返回; 超时返回PENDING;
+ * 第一次查完、注册等待之前结果刚好写进来 (通知已经错过了) 也不会一直等到超时
+ * redis的hash用mock代替; 超时和请求结束 由 DeferredResult 的拦截器触发 (和spring mvc里一样)
+ **/
+class OrderResultStoreTests {
+
+    private static final Long ORDER_ID = 5L;
+    private static final Long USER_ID = 1L;
+
+    private StringRedisTemplate stringRedisTemplate;
+    private HashOperations<String, Object, Object> hashOperations;
+    private OrderResultStore store;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        stringRedisTemplate = mock(StringRedisTemplate.class);
+        hashOperations = mock(HashOperations.class);
+        when(stringRedisTemplate.opsForHash()).thenReturn(hashOperations);
+        when(hashOperations.entries(anyString())).thenReturn(Collections.emptyMap());
+        store = new OrderResultStore();
+        ReflectionTestUtils.setField(store, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(store, "ttlMinutes", 30L);
+    }
+
+    private static Map<Object, Object> stored(String status, Long userId) {
+        Map<Object, Object> value = new HashMap<>();
+        value.put("status", status);
+        value.put("userId", String.valueOf(userId));
+        return value;
+    }
+
+    private void resultArrives(String status) {
+        when(hashOperations.entries(SECKILL_ORDER_RESULT_KEY + ORDER_ID)).thenReturn(stored(status, USER_ID));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String statusOf(DeferredResult<Result> result) {
+        assertTrue(result.hasResult());
+        Result r = (Result) result.getResult();
+        assertTrue(r.getSuccess(), r.getErrorMsg());
+        return (String) ((Map<String, Object>) r.getData()).get("status");
+    }
+
+    private static DeferredResultProcessingInterceptor interceptor(DeferredResult<Result> result) {
+        return ReflectionTestUtils.invokeMethod(result, "getInterceptor");
+    }
+
+    private Map<?, ?> waiters() {
+        return (Map<?, ?>) ReflectionTestUtils.getField(store, "waiters");
+    }
+
+    @Test
+    void existingResultIsReturnedAtOnce() {
+        resultArrives(OrderResultStore.SUCCESS);
+        DeferredResult<Result> result = store.await(ORDER_ID, USER_ID, 10_000);
+
+        assertEquals(OrderResultStore.SUCCESS, statusOf(result));
+        assertTrue(waiters().isEmpty());
+    }
+
+    @Test
+    void completesWhenResultIsPublished() throws Exception {
+        DeferredResult<Result> result = store.await(ORDER_ID, USER_ID, 10_000);
+        assertFalse(result.hasResult());
+        assertEquals(1, waiters().size());
+
+        // 别的节点的消费者写完了, 一条消息里带着一批订单id
+        resultArrives(OrderResultStore.FAILED);
+        ReflectionTestUtils.invokeMethod(store, "onMessage", "4," + ORDER_ID + ",6");
+
+        assertEquals(OrderResultStore.FAILED, statusOf(result));
+        interceptor(result).afterCompletion(null, result);
+        assertTrue(waiters().isEmpty());
+    }
+
+    @Test
+    void timeoutReturnsPending() throws Exception {
+        DeferredResult<Result> result = store.await(ORDER_ID, USER_ID, 10_000);
+
+        interceptor(result).handleTimeout(null, result);
+        interceptor(result).afterCompletion(null, result);
+
+        assertEquals(OrderResultStore.PENDING, statusOf(result));
+        assertTrue(waiters().isEmpty());
+    }
+
+    @Test
+    void resultWrittenBeforeRegistrationIsNotMissed() {
+        // 第一次查没有; 注册之前结果写进来了, 通知发的时候还没人在等
+        when(hashOperations.entries(SECKILL_ORDER_RESULT_KEY + ORDER_ID))
+                .thenReturn(Collections.emptyMap(), stored(OrderResultStore.SUCCESS, USER_ID));
+
+        DeferredResult<Result> result = store.await(ORDER_ID, USER_ID, 10_000);
+
+        assertEquals(OrderResultStore.SUCCESS, statusOf(result));
+        verify(hashOperations, times(2)).entries(SECKILL_ORDER_RESULT_KEY + ORDER_ID);
+    }
+
+    @Test
+    void zeroTimeoutDoesNotWait() {
+        DeferredResult<Result> result = store.await(ORDER_ID, USER_ID, 0);
+
+        assertEquals(OrderResultStore.PENDING, statusOf(result));
+        assertTrue(waiters().isEmpty());
+    }
+
+    @Test
+    void otherUsersOrderIsHidden() {
+        when(hashOperations.entries(SECKILL_ORDER_RESULT_KEY + ORDER_ID)).thenReturn(stored(OrderResultStore.SUCCESS, 2L));
+        DeferredResult<Result> result = store.await(ORDER_ID, USER_ID, 10_000);
+
+        assertFalse(((Result) result.getResult()).getSuccess());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void saveNotifiesOnceForTheBatch() {
+        store.save(Arrays.asList(new VoucherOrder().setId(4L).setUserId(USER_ID),
+                new VoucherOrder().setId(ORDER_ID).setUserId(USER_ID)), OrderResultStore.SUCCESS, null);
+        store.save(Collections.emptyList(), OrderResultStore.FAILED, "不允许重复下单");
+
+        verify(stringRedisTemplate, times(1)).executePipelined(any(RedisCallback.class));
+        verify(stringRedisTemplate).convertAndSend(SECKILL_ORDER_RESULT_CHANNEL, "4," + ORDER_ID);
+        verify(stringRedisTemplate, never()).convertAndSend(SECKILL_ORDER_RESULT_CHANNEL, "");
+    }
+}
@@ -0,0 +1,123 @@
+package com.hmdp;
+
+import com.hmdp.utils.RedisIdWorker;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 【RedisIdWorker 性能测试】 比较 redis / segment / snowflake 三种模式
+ * 1. single:    单线程一个个生成
+ * 2. contended: 8个线程同时生成
+ * 3. batch:     nextIds 一次生成100个 (结果按单个id算)
+ * 不连真的redis, 用一个内存里的计数器代替, redisRttMicros 模拟每次访问redis的往返耗时
+ * 运行: 直接运行main方法
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RedisIdWorkerBenchmark {
+
+    @Param({"redis", "segment", "snowflake"})
+    public String mode;
+
+    @Param({"0", "200"})
+    public long redisRttMicros;
+
+    private RedisIdWorker worker;
+
+    @Setup
+    public void setup() {
+        worker = new RedisIdWorker(new InMemoryRedisTemplate(redisRttMicros));
+        ReflectionTestUtils.setField(worker, "mode", mode);
+        ReflectionTestUtils.setField(worker, "segmentStep", 1000L);
+        ReflectionTestUtils.setField(worker, "prefetchPercent", 20L);
+        ReflectionTestUtils.setField(worker, "leaseSeconds", 600L);
+        ReflectionTestUtils.setField(worker, "maxBackwardSeconds", 5L);
+        ReflectionTestUtils.invokeMethod(worker, "init");
+    }
+
+    @TearDown
+    public void tearDown() {
+        ReflectionTestUtils.invokeMethod(worker, "destroy");
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long single() {
+        return worker.nextId("order");
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long contended() {
+        return worker.nextId("order");
+    }
+
+    @Benchmark
+    @Threads(1)
+    @OperationsPerInvocation(100)
+    public long[] batch() {
+        return worker.nextIds("order", 100);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(RedisIdWorkerBenchmark.class.getSimpleName())
+                .forks(1)
+                .warmupIterations(3)
+                .warmupTime(org.openjdk.jmh.runner.options.TimeValue.seconds(1))
+                .measurementIterations(5)
+                .measurementTime(org.openjdk.jmh.runner.options.TimeValue.seconds(1))
+                .build();
+        new Runner(options).run();
+    }
+
+    /**
+     * 只实现 RedisIdWorker 用到的 INCR / INCRBY / SET NX EX, 每次调用停顿rttMicros微秒
+     **/
+    static class InMemoryRedisTemplate extends StringRedisTemplate {
+
+        private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+        private final Map<String, String> values = new ConcurrentHashMap<>();
+        private final ValueOperations<String, String> valueOperations;
+
+        @SuppressWarnings("unchecked")
+        InMemoryRedisTemplate(long rttMicros) {
+            valueOperations = (ValueOperations<String, String>) Proxy.newProxyInstance(
+                    ValueOperations.class.getClassLoader(), new Class[]{ValueOperations.class},
+                    (proxy, method, args) -> {
+                        if (rttMicros > 0) {
+                            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(rttMicros));
+                        }
+                        String key = (String) args[0];
+                        switch (method.getName()) {
+                            case "increment":
+                                long delta = args.length > 1 ? ((Number) args[1]).longValue() : 1L;
+                                return counters.computeIfAbsent(key, k -> new AtomicLong()).addAndGet(delta);
+                            case "setIfAbsent":
+                                return values.putIfAbsent(key, (String) args[1]) == null;
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    });
+        }
+
+        @Override
+        public ValueOperations<String, String> opsForValue() {
+            return valueOperations;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.hmdp;
+
+import com.hmdp.utils.RedisIdWorker;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 号段模式 (hmdp.id.mode=segment): id不重复、单线程递增; 一个号段只访问一次redis
+ * redis用 RedisIdWorkerBenchmark 里的内存计数器代替
+ **/
+class RedisIdWorkerSegmentTests {
+
+    private static final long STEP = 100;
+    private static final long COUNT_MASK = (1L << 32) - 1;
+
+    private RedisIdWorkerBenchmark.InMemoryRedisTemplate redisTemplate;
+    private RedisIdWorker worker;
+
+    @BeforeEach
+    void setUp() {
+        redisTemplate = new RedisIdWorkerBenchmark.InMemoryRedisTemplate(0);
+        worker = new RedisIdWorker(redisTemplate);
+        ReflectionTestUtils.setField(worker, "mode", "segment");
+        ReflectionTestUtils.setField(worker, "segmentStep", STEP);
+        ReflectionTestUtils.setField(worker, "prefetchPercent", 20L);
+        ReflectionTestUtils.invokeMethod(worker, "init");
+    }
+
+    @AfterEach
+    void tearDown() {
+        ReflectionTestUtils.invokeMethod(worker, "destroy");
+    }
+
+    @Test
+    void idsIncreaseAcrossSegments() {
+        long last = 0;
+        for (int i = 0; i < 10 * STEP; i++) {
+            long id = worker.nextId("order");
+            assertTrue(id > last, "第" + i + "个id没有递增");
+            last = id;
+        }
+        // 序列号从1开始连续发, 号段之间不跳号
+        assertEquals(10 * STEP, last & COUNT_MASK);
+    }
+
+    @Test
+    void fetchesOneSegmentPerStep() {
+        int n = (int) (10 * STEP);
+        worker.nextIds("order", n);
+        // 每次INCRBY加STEP: 10段用完, 最多再提前拿了1段
+        long calls = incremented() / STEP;
+        assertTrue(calls >= 10 && calls <= 11, "INCRBY " + calls + "次");
+    }
+
+    @SuppressWarnings("unchecked")
+    private long incremented() {
+        Map<String, AtomicLong> counters = (Map<String, AtomicLong>) ReflectionTestUtils.getField(redisTemplate, "counters");
+        return counters.values().stream().mapToLong(AtomicLong::get).sum();
+    }
+
+    @Test
+    void noDuplicatesUnderContention() throws Exception {
+        int threads = 8;
+        int perThread = 2000;
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        ids.add(worker.nextId("order"));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(threads * perThread, ids.size());
+    }
+
+    @Test
+    void prefixesHaveSeparateSequences() {
+        long order = worker.nextId("order");
+        long blog = worker.nextId("blog");
+        assertEquals(1, order & COUNT_MASK);
+        assertEquals(1, blog & COUNT_MASK);
+    }
+}
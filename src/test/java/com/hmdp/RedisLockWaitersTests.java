@@ -0,0 +1,152 @@
+package com.hmdp;
+
+import com.hmdp.utils.RedisLockWaiters;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * 等锁: 收到释放通知马上再抢; 没通知就等到锁过期再抢; 本节点同一时间只有一个线程去抢
+ * redis只用到 PTTL, 用mock代替; 释放通知直接调 onMessage
+ **/
+class RedisLockWaitersTests {
+
+    private static final String KEY = "lock:reentrant:{order}";
+
+    private StringRedisTemplate stringRedisTemplate;
+    private RedisLockWaiters waiters;
+
+    @BeforeEach
+    void setUp() {
+        stringRedisTemplate = mock(StringRedisTemplate.class);
+        // 锁还有30秒才过期, 没有通知的话会一直等到超时
+        when(stringRedisTemplate.getExpire(anyString(), eq(TimeUnit.MILLISECONDS))).thenReturn(30_000L);
+        waiters = new RedisLockWaiters();
+        ReflectionTestUtils.setField(waiters, "stringRedisTemplate", stringRedisTemplate);
+    }
+
+    @Test
+    void returnsAtOnceWhenFirstAttemptSucceeds() throws Exception {
+        assertTrue(waiters.acquire(KEY, 1000, () -> true));
+    }
+
+    @Test
+    void doesNotWaitWhenWaitTimeIsZero() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        assertFalse(waiters.acquire(KEY, 0, () -> attempts.incrementAndGet() < 0));
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    void givesUpAfterWaitTime() throws Exception {
+        long begin = System.nanoTime();
+        assertFalse(waiters.acquire(KEY, 200, () -> false));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        assertTrue(elapsed >= 200 && elapsed < 2000, "elapsed " + elapsed);
+    }
+
+    @Test
+    void releaseNotificationWakesWaiter() throws Exception {
+        AtomicBoolean held = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> waiter = executor.submit(() -> waiters.acquire(KEY, 10_000, () -> held.compareAndSet(false, true)));
+            // 等它查完过期时间开始等通知
+            verify(stringRedisTemplate, timeout(2000)).getExpire(KEY, TimeUnit.MILLISECONDS);
+
+            long begin = System.nanoTime();
+            held.set(false);
+            ReflectionTestUtils.invokeMethod(waiters, "onMessage", KEY);
+
+            assertTrue(waiter.get(2, TimeUnit.SECONDS));
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin) < 2000);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void retriesWhenLockExpiresWithoutNotification() throws Exception {
+        // 持有者挂了, 锁是过期释放的, 不会有通知
+        when(stringRedisTemplate.getExpire(anyString(), eq(TimeUnit.MILLISECONDS))).thenReturn(50L);
+        long expireAt = System.currentTimeMillis() + 100;
+        assertTrue(waiters.acquire(KEY, 5_000, () -> System.currentTimeMillis() >= expireAt));
+    }
+
+    @Test
+    void onlyOneLocalThreadAttemptsAtATime() throws Exception {
+        int threads = 4;
+        AtomicBoolean held = new AtomicBoolean(true);
+        // 每个线程第一次尝试不排队, 可以并发; 只统计排队以后的尝试
+        ThreadLocal<Boolean> queued = ThreadLocal.withInitial(() -> false);
+        AtomicInteger attempting = new AtomicInteger();
+        AtomicInteger maxAttempting = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return waiters.acquire(KEY, 10_000, () -> {
+                        if (!queued.get()) {
+                            queued.set(true);
+                            return held.compareAndSet(false, true);
+                        }
+                        maxAttempting.accumulateAndGet(attempting.incrementAndGet(), Math::max);
+                        try {
+                            Thread.sleep(5);
+                            return held.compareAndSet(false, true);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return false;
+                        } finally {
+                            attempting.decrementAndGet();
+                        }
+                    });
+                }));
+            }
+            start.countDown();
+
+            // 释放4次, 每次唤醒一个
+            for (int released = 0; released < threads; released++) {
+                verify(stringRedisTemplate, timeout(2000).atLeast(released + 1)).getExpire(KEY, TimeUnit.MILLISECONDS);
+                held.set(false);
+                ReflectionTestUtils.invokeMethod(waiters, "onMessage", KEY);
+                while (!held.get()) {
+                    Thread.sleep(1);
+                }
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, maxAttempting.get());
+        // 都拿到以后不留下空的等待队列
+        assertEquals(0, ((Map<?, ?>) ReflectionTestUtils.getField(waiters, "waiters")).size());
+    }
+}
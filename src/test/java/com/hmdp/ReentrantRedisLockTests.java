@@ -0,0 +1,183 @@
+package com.hmdp;
+
+import com.hmdp.utils.LuaScriptRegistry;
+import com.hmdp.utils.RedisLockWaiters;
+import com.hmdp.utils.RedisLockWatchdog;
+import com.hmdp.utils.ReentrantRedisLock;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * 可重入锁的 tryLock(waitTime, ...) : 拿不到锁时等释放通知, 别人一释放马上拿到
+ * lock_acquire / lock_release 两个脚本用内存里的 FakeLuaScriptRegistry 代替, 完全释放时调 onMessage 模拟发布
+ * 锁的过期时间固定返回30秒, 收不到通知的话要等到超时才会再抢
+ **/
+class ReentrantRedisLockTests {
+
+    private static final String NAME = "order:1";
+
+    private FakeLuaScriptRegistry luaScriptRegistry;
+    private RedisLockWatchdog watchdog;
+    private RedisLockWaiters lockWaiters;
+    private StringRedisTemplate stringRedisTemplate;
+
+    @BeforeEach
+    void setUp() {
+        stringRedisTemplate = mock(StringRedisTemplate.class);
+        when(stringRedisTemplate.getExpire(anyString(), eq(TimeUnit.MILLISECONDS))).thenReturn(30_000L);
+        lockWaiters = new RedisLockWaiters();
+        ReflectionTestUtils.setField(lockWaiters, "stringRedisTemplate", stringRedisTemplate);
+        watchdog = mock(RedisLockWatchdog.class);
+        when(watchdog.leaseMillis()).thenReturn(30_000L);
+        luaScriptRegistry = new FakeLuaScriptRegistry(lockWaiters);
+    }
+
+    private ReentrantRedisLock newLock() {
+        return new ReentrantRedisLock(luaScriptRegistry, watchdog, lockWaiters, NAME);
+    }
+
+    @Test
+    void reentrantLockKeepsTokenUntilFullyReleased() throws Exception {
+        ReentrantRedisLock lock = newLock();
+        long token = lock.tryLock();
+        assertTrue(token > 0);
+        assertEquals(token, lock.tryLock());
+
+        // 释放一次还在重入, 别的线程拿不到
+        lock.unlock();
+        assertEquals(0, runInOtherThread(() -> newLock().tryLock()));
+
+        lock.unlock();
+        long next = runInOtherThread(() -> newLock().tryLock());
+        assertTrue(next > token, "fencing token只增不减");
+    }
+
+    @Test
+    void waiterAcquiresAsSoonAsHolderReleases() throws Exception {
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Long> holder = executor.submit(() -> {
+                ReentrantRedisLock lock = newLock();
+                long token = lock.tryLock();
+                locked.countDown();
+                release.await();
+                lock.unlock();
+                return token;
+            });
+            assertTrue(locked.await(2, TimeUnit.SECONDS));
+
+            Future<Long> waiter = executor.submit(() -> newLock().tryLock(10, TimeUnit.SECONDS));
+            // 抢过一次没抢到, 开始等通知
+            verify(stringRedisTemplate, timeout(2000)).getExpire(luaScriptRegistry.lockKey(), TimeUnit.MILLISECONDS);
+
+            long begin = System.nanoTime();
+            release.countDown();
+            long token = waiter.get(2, TimeUnit.SECONDS);
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin) < 2000);
+            assertTrue(token > holder.get());
+            // 不指定持有时间, 交给看门狗续租
+            verify(watchdog, timeout(2000).times(2)).watch(eq(luaScriptRegistry.lockKey()), anyString());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void tryLockWithLeaseTimesOutWhileHeld() throws Exception {
+        assertTrue(newLock().tryLock() > 0);
+
+        long begin = System.nanoTime();
+        boolean acquired = runInOtherThread(() -> newLock().tryLock(200, 1000, TimeUnit.MILLISECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        assertFalse(acquired);
+        assertTrue(elapsed >= 200 && elapsed < 2000, "elapsed " + elapsed);
+    }
+
+    /**
+     * 持有者标识是每个线程一个, 换个线程才是另一个持有者
+     **/
+    private static <T> T runInOtherThread(Callable<T> task) throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            return executor.submit(task).get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 只实现 lock_acquire / lock_release, 语义和lua脚本一样 (不管过期)
+     **/
+    static class FakeLuaScriptRegistry extends LuaScriptRegistry {
+
+        private final RedisLockWaiters lockWaiters;
+        private final Map<String, Integer> holds = new HashMap<>();
+        private long fencing;
+        private long token;
+
+        FakeLuaScriptRegistry(RedisLockWaiters lockWaiters) {
+            this.lockWaiters = lockWaiters;
+        }
+
+        String lockKey() {
+            return "lock:reentrant:{" + NAME + "}";
+        }
+
+        @Override
+        public Long execute(String name, List<String> keys, Object... args) {
+            String owner = (String) args[0];
+            synchronized (this) {
+                switch (name) {
+                    case LOCK_ACQUIRE:
+                        if (!holds.isEmpty() && !holds.containsKey(owner)) {
+                            return 0L;
+                        }
+                        if (holds.merge(owner, 1, Integer::sum) == 1) {
+                            token = ++fencing;
+                        }
+                        return token;
+                    case LOCK_RELEASE:
+                        Integer count = holds.get(owner);
+                        if (count == null) {
+                            return -1L;
+                        }
+                        if (count > 1) {
+                            holds.put(owner, count - 1);
+                            return (long) count - 1;
+                        }
+                        holds.remove(owner);
+                        break;
+                    default:
+                        throw new UnsupportedOperationException(name);
+                }
+            }
+            // 完全释放: 相当于 PUBLISH lock:unlock key
+            ReflectionTestUtils.invokeMethod(lockWaiters, "onMessage", keys.get(0));
+            return 0L;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.hmdp;
+
+import com.hmdp.config.WebExceptionAdvice;
+import com.hmdp.controller.VoucherOrderController;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.impl.VoucherOrderServiceImpl;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.IdBloomFilters;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillAdmission;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SeckillThrottledException;
+import com.hmdp.utils.SeckillWindows;
+import com.hmdp.utils.SoldOutFlags;
+import com.hmdp.utils.UserHolder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.util.concurrent.Semaphore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * 秒杀准入控制: seckillVoucher 不管怎么结束 (成功、失败码、发消息失败、抛异常) 都要还回并发许可
+ * 并发上限设成1, 漏还一次下一个请求就会被拒绝; 被拒绝的请求经过 WebExceptionAdvice 变成 429 + Retry-After
+ **/
+class SeckillAdmissionTests {
+
+    private static final Long VOUCHER_ID = 10L;
+    private static final Long USER_ID = 1L;
+
+    private SeckillAdmission admission;
+    private SeckillStockShards seckillStockShards;
+    private StreamOperations<String, Object, Object> streamOperations;
+    private VoucherOrderServiceImpl service;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        admission = new SeckillAdmission();
+        ReflectionTestUtils.setField(admission, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(admission, "enabled", true);
+        ReflectionTestUtils.setField(admission, "permitsPerSecond", 1000.0);
+        ReflectionTestUtils.setField(admission, "burst", 1000.0);
+        ReflectionTestUtils.setField(admission, "maxConcurrent", 1);
+        ReflectionTestUtils.invokeMethod(admission, "init");
+
+        IdBloomFilters idBloomFilters = mock(IdBloomFilters.class);
+        when(idBloomFilters.mightContain(anyString(), any())).thenReturn(true);
+        RedisIdWorker redisIdWorker = mock(RedisIdWorker.class);
+        when(redisIdWorker.nextId("order")).thenReturn(100L);
+        seckillStockShards = mock(SeckillStockShards.class);
+        streamOperations = mock(StreamOperations.class);
+        StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+        when(stringRedisTemplate.opsForStream()).thenReturn(streamOperations);
+
+        service = new VoucherOrderServiceImpl();
+        ReflectionTestUtils.setField(service, "idBloomFilters", idBloomFilters);
+        ReflectionTestUtils.setField(service, "soldOutFlags", mock(SoldOutFlags.class));
+        ReflectionTestUtils.setField(service, "seckillWindows", mock(SeckillWindows.class));
+        ReflectionTestUtils.setField(service, "seckillAdmission", admission);
+        ReflectionTestUtils.setField(service, "hotKeyDetector", mock(HotKeyDetector.class));
+        ReflectionTestUtils.setField(service, "redisIdWorker", redisIdWorker);
+        ReflectionTestUtils.setField(service, "seckillStockShards", seckillStockShards);
+        ReflectionTestUtils.setField(service, "stringRedisTemplate", stringRedisTemplate);
+
+        UserDTO user = new UserDTO();
+        user.setId(USER_ID);
+        UserHolder.saveUser(user);
+    }
+
+    @AfterEach
+    void tearDown() {
+        UserHolder.removeUser();
+    }
+
+    private int availablePermits() {
+        return ((Semaphore) ReflectionTestUtils.getField(admission, "concurrency")).availablePermits();
+    }
+
+    @Test
+    void permitIsReleasedAfterSuccess() {
+        Result result = service.seckillVoucher(VOUCHER_ID);
+
+        assertTrue(result.getSuccess());
+        assertEquals(100L, result.getData());
+        assertEquals(1, availablePermits());
+        verify(seckillStockShards).confirm(VOUCHER_ID, USER_ID);
+    }
+
+    @Test
+    void permitIsReleasedAfterFailureCode() {
+        when(seckillStockShards.trySeckill(VOUCHER_ID, USER_ID, 100L)).thenReturn(SeckillStockShards.REPEAT);
+
+        assertFalse(service.seckillVoucher(VOUCHER_ID).getSuccess());
+        assertEquals(1, availablePermits());
+    }
+
+    @Test
+    void permitIsReleasedWhenOrderMessageFails() {
+        when(streamOperations.add(anyString(), anyMap())).thenThrow(new RedisConnectionFailureException("xadd"));
+
+        Result result = service.seckillVoucher(VOUCHER_ID);
+
+        assertEquals("下单失败, 请重试", result.getErrorMsg());
+        verify(seckillStockShards).cancel(VOUCHER_ID, USER_ID);
+        assertEquals(1, availablePermits());
+    }
+
+    @Test
+    void permitIsReleasedWhenScriptThrows() {
+        when(seckillStockShards.trySeckill(eq(VOUCHER_ID), eq(USER_ID), anyLong()))
+                .thenThrow(new RedisConnectionFailureException("evalsha"));
+
+        assertThrows(RedisConnectionFailureException.class, () -> service.seckillVoucher(VOUCHER_ID));
+        assertEquals(1, availablePermits());
+
+        // 许可还回来了, 后面的请求照常处理
+        when(seckillStockShards.trySeckill(eq(VOUCHER_ID), eq(USER_ID), anyLong())).thenReturn(SeckillStockShards.SUCCESS);
+        assertTrue(service.seckillVoucher(VOUCHER_ID).getSuccess());
+    }
+
+    @Test
+    void overloadedRequestIsRejectedBeforeRedis() {
+        // 另一个请求正在处理, 占着唯一的许可
+        assertEquals(0, admission.tryAcquire(VOUCHER_ID));
+
+        SeckillThrottledException e = assertThrows(SeckillThrottledException.class, () -> service.seckillVoucher(VOUCHER_ID));
+        assertEquals(1000, e.getRetryAfterMillis());
+        verify(seckillStockShards, never()).trySeckill(any(), any(), anyLong());
+        // 被拒绝的请求没有拿许可, 也不能多还一个
+        assertEquals(0, availablePermits());
+
+        admission.release();
+        assertEquals(1, availablePermits());
+    }
+
+    @Test
+    void throttledRequestBecomes429WithRetryAfter() throws Exception {
+        IVoucherOrderService voucherOrderService = mock(IVoucherOrderService.class);
+        when(voucherOrderService.seckillVoucher(VOUCHER_ID)).thenThrow(new SeckillThrottledException(1500));
+        when(voucherOrderService.seckillVoucher(11L)).thenThrow(new IllegalStateException("boom"));
+        VoucherOrderController controller = new VoucherOrderController();
+        ReflectionTestUtils.setField(controller, "voucherOrderService", voucherOrderService);
+        MockMvc mockMvc = MockMvcBuilders.standaloneSetup(controller)
+                .setControllerAdvice(new WebExceptionAdvice())
+                .build();
+
+        // 1.5秒向上取整
+        mockMvc.perform(post("/voucher-order/seckill/" + VOUCHER_ID))
+                .andExpect(status().isTooManyRequests())
+                .andExpect(header().string("Retry-After", "2"))
+                .andExpect(jsonPath("$.success").value(false))
+                .andExpect(jsonPath("$.errorMsg").value("活动太火爆, 请稍后再试"));
+
+        // 其他异常还是原来的处理
+        mockMvc.perform(post("/voucher-order/seckill/11"))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist("Retry-After"))
+                .andExpect(jsonPath("$.errorMsg").value("服务器异常"));
+    }
+}
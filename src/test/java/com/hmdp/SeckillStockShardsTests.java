@@ -0,0 +1,212 @@
+package com.hmdp;
+
+import com.hmdp.utils.LuaScriptRegistry;
+import com.hmdp.utils.SeckillStockShards;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.SetOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.hmdp.utils.LuaScriptRegistry.SECKILL;
+import static com.hmdp.utils.LuaScriptRegistry.SECKILL_CANCEL;
+import static com.hmdp.utils.LuaScriptRegistry.SECKILL_SHARD;
+import static com.hmdp.utils.LuaScriptRegistry.SECKILL_STOCK;
+import static com.hmdp.utils.RedisConstants.SECKILL_SHARDS_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * 分片库存: 脚本的返回码怎么变成 trySeckill 的结果, home分片卖完以后到其他分片扣库存,
+ * 全卖完时还回购买资格; cancel 用哪个分片的key; 没有分片数记录的老数据改名成带hash tag的key
+ * 脚本用 RecordingLuaScriptRegistry 代替: 记下每次调用, 按 "脚本名 第一个key" 返回设定好的结果 (默认0)
+ * 用户6: 4个分片时home分片是2
+ **/
+class SeckillStockShardsTests {
+
+    private static final Long VOUCHER_ID = 10L;
+    private static final Long USER_ID = 6L;
+
+    private RecordingLuaScriptRegistry luaScriptRegistry;
+    private StringRedisTemplate stringRedisTemplate;
+    private ValueOperations<String, String> valueOperations;
+    private SetOperations<String, String> setOperations;
+    private HashOperations<String, Object, Object> hashOperations;
+    private SeckillStockShards shards;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        luaScriptRegistry = new RecordingLuaScriptRegistry();
+        stringRedisTemplate = mock(StringRedisTemplate.class);
+        valueOperations = mock(ValueOperations.class);
+        setOperations = mock(SetOperations.class);
+        hashOperations = mock(HashOperations.class);
+        when(stringRedisTemplate.opsForValue()).thenReturn(valueOperations);
+        when(stringRedisTemplate.opsForSet()).thenReturn(setOperations);
+        when(stringRedisTemplate.opsForHash()).thenReturn(hashOperations);
+
+        shards = new SeckillStockShards();
+        ReflectionTestUtils.setField(shards, "luaScriptRegistry", luaScriptRegistry);
+        ReflectionTestUtils.setField(shards, "stringRedisTemplate", stringRedisTemplate);
+    }
+
+    private void shardCount(int count) {
+        when(valueOperations.get(SECKILL_SHARDS_KEY + VOUCHER_ID)).thenReturn(String.valueOf(count));
+    }
+
+    @Test
+    void singleShardRunsSeckillScriptOnTaggedKeys() {
+        shardCount(1);
+        luaScriptRegistry.results.put(SECKILL + " seckill:stock:{10}", (long) SeckillStockShards.REPEAT);
+
+        assertEquals(SeckillStockShards.REPEAT, shards.trySeckill(VOUCHER_ID, USER_ID, 100L));
+        assertEquals(Collections.singletonList(
+                SECKILL + " [seckill:stock:{10}, seckill:order:{10}, seckill:window:{10}, seckill:pending:{10}]"),
+                luaScriptRegistry.calls);
+        assertEquals(Arrays.asList("6", "100"), luaScriptRegistry.args.get(0).subList(0, 2));
+    }
+
+    @Test
+    void homeShardResultIsReturnedWithoutFallThrough() {
+        shardCount(4);
+        luaScriptRegistry.results.put(SECKILL_SHARD + " seckill:stock:{10:2}", (long) SeckillStockShards.REPEAT);
+
+        assertEquals(SeckillStockShards.REPEAT, shards.trySeckill(VOUCHER_ID, USER_ID, 100L));
+        assertEquals(Collections.singletonList(
+                SECKILL_SHARD + " [seckill:stock:{10:2}, seckill:order:{10:2}, seckill:window:{10:2}, seckill:pending:{10:2}]"),
+                luaScriptRegistry.calls);
+    }
+
+    @Test
+    void windowCodesFromHomeShardAreNotSoldOut() {
+        shardCount(4);
+        luaScriptRegistry.results.put(SECKILL_SHARD + " seckill:stock:{10:2}", (long) SeckillStockShards.NOT_STARTED);
+        assertEquals(SeckillStockShards.NOT_STARTED, shards.trySeckill(VOUCHER_ID, USER_ID, 100L));
+
+        luaScriptRegistry.results.put(SECKILL_SHARD + " seckill:stock:{10:2}", (long) SeckillStockShards.ENDED);
+        assertEquals(SeckillStockShards.ENDED, shards.trySeckill(VOUCHER_ID, USER_ID, 100L));
+
+        // 时间窗口外不去其他分片扣库存
+        assertEquals(2, luaScriptRegistry.calls.size());
+        verify(setOperations, never()).remove(anyString(), anyString());
+    }
+
+    @Test
+    void emptyHomeShardTakesStockFromNextShards() {
+        shardCount(4);
+        luaScriptRegistry.results.put(SECKILL_SHARD + " seckill:stock:{10:2}", 3L);
+        luaScriptRegistry.results.put(SECKILL_STOCK + " seckill:stock:{10:3}", (long) SeckillStockShards.SOLD_OUT);
+
+        assertEquals(SeckillStockShards.SUCCESS, shards.trySeckill(VOUCHER_ID, USER_ID, 100L));
+        // 从home的下一个分片开始, 扣到了就停
+        assertEquals(Arrays.asList(
+                SECKILL_SHARD + " [seckill:stock:{10:2}, seckill:order:{10:2}, seckill:window:{10:2}, seckill:pending:{10:2}]",
+                SECKILL_STOCK + " [seckill:stock:{10:3}]",
+                SECKILL_STOCK + " [seckill:stock:{10:0}]"), luaScriptRegistry.calls);
+        verify(setOperations, never()).remove(anyString(), anyString());
+    }
+
+    @Test
+    void allShardsSoldOutGivesBackTheHomeShardQualification() {
+        shardCount(4);
+        luaScriptRegistry.results.put(SECKILL_SHARD + " seckill:stock:{10:2}", 3L);
+        for (int i = 0; i < 4; i++) {
+            luaScriptRegistry.results.put(SECKILL_STOCK + " seckill:stock:{10:" + i + "}", (long) SeckillStockShards.SOLD_OUT);
+        }
+
+        assertEquals(SeckillStockShards.SOLD_OUT, shards.trySeckill(VOUCHER_ID, USER_ID, 100L));
+        assertEquals(4, luaScriptRegistry.calls.size());
+        // 先还购买资格, 再删待发送的订单
+        InOrder inOrder = inOrder(setOperations, hashOperations);
+        inOrder.verify(setOperations).remove("seckill:order:{10:2}", "6");
+        inOrder.verify(hashOperations).delete("seckill:pending:{10:2}", "6");
+    }
+
+    @Test
+    void missingScriptResultCountsAsSoldOut() {
+        shardCount(1);
+        luaScriptRegistry.results.put(SECKILL + " seckill:stock:{10}", null);
+
+        assertEquals(SeckillStockShards.SOLD_OUT, shards.trySeckill(VOUCHER_ID, USER_ID, 100L));
+    }
+
+    @Test
+    void cancelUsesUnshardedKeysForSingleShard() {
+        shardCount(1);
+        shards.cancel(VOUCHER_ID, USER_ID);
+
+        assertEquals(Collections.singletonList(
+                SECKILL_CANCEL + " [seckill:stock:{10}, seckill:order:{10}, seckill:pending:{10}]"), luaScriptRegistry.calls);
+        assertEquals(Collections.singletonList("6"), luaScriptRegistry.args.get(0));
+    }
+
+    @Test
+    void cancelUsesHomeShardKeys() {
+        shardCount(4);
+        shards.cancel(VOUCHER_ID, USER_ID);
+
+        assertEquals(Collections.singletonList(
+                SECKILL_CANCEL + " [seckill:stock:{10:2}, seckill:order:{10:2}, seckill:pending:{10:2}]"), luaScriptRegistry.calls);
+    }
+
+    @Test
+    void legacyKeysAreRenamedOnce() {
+        // 没有分片数记录, 只有老的库存和下单用户key
+        when(stringRedisTemplate.hasKey("seckill:stock:10")).thenReturn(true);
+        when(stringRedisTemplate.hasKey("seckill:order:10")).thenReturn(true);
+        when(stringRedisTemplate.hasKey("seckill:window:10")).thenReturn(false);
+
+        assertEquals(1, shards.shardsOf(VOUCHER_ID));
+        assertEquals(1, shards.shardsOf(VOUCHER_ID));
+
+        verify(stringRedisTemplate).renameIfAbsent("seckill:stock:10", "seckill:stock:{10}");
+        verify(stringRedisTemplate).renameIfAbsent("seckill:order:10", "seckill:order:{10}");
+        verify(stringRedisTemplate, never()).renameIfAbsent("seckill:window:10", "seckill:window:{10}");
+        verify(valueOperations).setIfAbsent(SECKILL_SHARDS_KEY + VOUCHER_ID, "1");
+        // 结果缓存在本地, 第二次不再查redis
+        verify(valueOperations, times(1)).get(SECKILL_SHARDS_KEY + VOUCHER_ID);
+    }
+
+    @Test
+    void recordedShardCountSkipsMigration() {
+        shardCount(4);
+
+        assertEquals(4, shards.shardsOf(VOUCHER_ID));
+        verify(stringRedisTemplate, never()).hasKey(anyString());
+        verify(valueOperations, never()).setIfAbsent(anyString(), anyString());
+    }
+
+    /**
+     * 记下调用了哪个脚本、用了哪些key, 返回设定好的结果
+     **/
+    static class RecordingLuaScriptRegistry extends LuaScriptRegistry {
+
+        final List<String> calls = new ArrayList<>();
+        final List<List<Object>> args = new ArrayList<>();
+        final Map<String, Long> results = new HashMap<>();
+
+        @Override
+        public Long execute(String name, List<String> keys, Object... args) {
+            calls.add(name + " " + keys);
+            this.args.add(Arrays.asList(args));
+            return results.getOrDefault(name + " " + keys.get(0), (long) SeckillStockShards.SUCCESS);
+        }
+    }
+}
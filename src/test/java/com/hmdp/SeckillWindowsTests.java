@@ -0,0 +1,153 @@
+package com.hmdp;
+
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.service.impl.VoucherOrderServiceImpl;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.IdBloomFilters;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillAdmission;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SeckillWindows;
+import com.hmdp.utils.SoldOutFlags;
+import com.hmdp.utils.UserHolder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * 秒杀时间窗口: 本地缓存的窗口在本节点提前拒绝没开始/已结束的请求;
+ * 脚本里用redis时间判断的结果 (NOT_STARTED / ENDED / SOLD_OUT / REPEAT) 转成对应的提示
+ **/
+class SeckillWindowsTests {
+
+    private static final Long VOUCHER_ID = 10L;
+
+    private HashOperations<String, Object, Object> hashOperations;
+    private SeckillWindows windows;
+
+    private SeckillStockShards seckillStockShards;
+    private SeckillAdmission seckillAdmission;
+    private SoldOutFlags soldOutFlags;
+    private VoucherOrderServiceImpl service;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+        hashOperations = mock(HashOperations.class);
+        when(stringRedisTemplate.opsForHash()).thenReturn(hashOperations);
+        when(stringRedisTemplate.opsForStream()).thenReturn(mock(StreamOperations.class));
+        windows = new SeckillWindows();
+        ReflectionTestUtils.setField(windows, "stringRedisTemplate", stringRedisTemplate);
+
+        IdBloomFilters idBloomFilters = mock(IdBloomFilters.class);
+        when(idBloomFilters.mightContain(any(), any())).thenReturn(true);
+        seckillStockShards = mock(SeckillStockShards.class);
+        seckillAdmission = mock(SeckillAdmission.class);
+        soldOutFlags = mock(SoldOutFlags.class);
+        service = new VoucherOrderServiceImpl();
+        ReflectionTestUtils.setField(service, "idBloomFilters", idBloomFilters);
+        ReflectionTestUtils.setField(service, "soldOutFlags", soldOutFlags);
+        ReflectionTestUtils.setField(service, "seckillWindows", windows);
+        ReflectionTestUtils.setField(service, "seckillAdmission", seckillAdmission);
+        ReflectionTestUtils.setField(service, "hotKeyDetector", mock(HotKeyDetector.class));
+        ReflectionTestUtils.setField(service, "redisIdWorker", mock(RedisIdWorker.class));
+        ReflectionTestUtils.setField(service, "seckillStockShards", seckillStockShards);
+        ReflectionTestUtils.setField(service, "stringRedisTemplate", stringRedisTemplate);
+
+        UserDTO user = new UserDTO();
+        user.setId(1L);
+        UserHolder.saveUser(user);
+    }
+
+    @AfterEach
+    void tearDown() {
+        UserHolder.removeUser();
+    }
+
+    private void storedWindow(Long voucherId, String begin, String end) {
+        when(hashOperations.multiGet(SeckillStockShards.windowKey(voucherId), Arrays.asList("begin", "end")))
+                .thenReturn(Arrays.asList(begin, end));
+    }
+
+    /**
+     * 相对现在的开始/结束时间 (毫秒)
+     **/
+    private void window(Long voucherId, long beginOffsetMillis, long endOffsetMillis) {
+        long now = System.currentTimeMillis();
+        storedWindow(voucherId, String.valueOf(now + beginOffsetMillis), String.valueOf(now + endOffsetMillis));
+    }
+
+    @Test
+    void checkComparesWithCachedWindow() {
+        window(VOUCHER_ID, -60_000, 60_000);
+        assertEquals(SeckillStockShards.SUCCESS, windows.check(VOUCHER_ID));
+        assertEquals(SeckillStockShards.SUCCESS, windows.check(VOUCHER_ID));
+        // 缓存在本地, 只查一次redis
+        verify(hashOperations, times(1)).multiGet(any(), anyList());
+    }
+
+    @Test
+    void checkRejectsOutsideWindow() {
+        window(VOUCHER_ID, 60_000, 120_000);
+        assertEquals(SeckillStockShards.NOT_STARTED, windows.check(VOUCHER_ID));
+
+        window(11L, -120_000, -60_000);
+        assertEquals(SeckillStockShards.ENDED, windows.check(11L));
+    }
+
+    @Test
+    void voucherWithoutWindowIsAlwaysOpen() {
+        storedWindow(VOUCHER_ID, null, null);
+        assertEquals(SeckillStockShards.SUCCESS, windows.check(VOUCHER_ID));
+    }
+
+    @Test
+    void localWindowRejectsBeforeAdmissionAndScript() {
+        window(VOUCHER_ID, 60_000, 120_000);
+
+        assertEquals("当前抢购尚未开始!", service.seckillVoucher(VOUCHER_ID).getErrorMsg());
+        verify(seckillAdmission, never()).tryAcquire(any());
+        verify(seckillStockShards, never()).trySeckill(any(), any(), anyLong());
+    }
+
+    @Test
+    void scriptCodesBecomeFailureMessages() {
+        // 本地窗口内, 但redis时间说已经结束了 (各节点时钟有偏差)
+        window(VOUCHER_ID, -60_000, 60_000);
+        assertEquals("当前抢购尚未开始!", seckillWithScriptResult(SeckillStockShards.NOT_STARTED).getErrorMsg());
+        assertEquals("秒杀已经结束...", seckillWithScriptResult(SeckillStockShards.ENDED).getErrorMsg());
+        assertEquals("不能重复购买", seckillWithScriptResult(SeckillStockShards.REPEAT).getErrorMsg());
+        verify(soldOutFlags, never()).markSoldOut(any());
+
+        assertEquals("库存不足", seckillWithScriptResult(SeckillStockShards.SOLD_OUT).getErrorMsg());
+        verify(soldOutFlags).markSoldOut(VOUCHER_ID);
+        // 每次都还回了准入许可
+        verify(seckillAdmission, times(4)).release();
+    }
+
+    private Result seckillWithScriptResult(int code) {
+        when(seckillStockShards.trySeckill(any(), any(), anyLong())).thenReturn(code);
+        Result result = service.seckillVoucher(VOUCHER_ID);
+        assertFalse(result.getSuccess());
+        return result;
+    }
+}
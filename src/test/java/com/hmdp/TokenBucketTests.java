@@ -0,0 +1,49 @@
+package com.hmdp;
+
+import com.hmdp.utils.TokenBucket;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 令牌桶: 一开始是满的, 允许突发capacity个; 用完了返回要等多久; 按速率补回来
+ **/
+class TokenBucketTests {
+
+    @Test
+    void allowsBurstUpToCapacity() {
+        TokenBucket bucket = new TokenBucket(1, 5);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, bucket.tryAcquire());
+        }
+        long waitNanos = bucket.tryAcquire();
+        // 每秒1个, 下一个令牌最多等1秒
+        assertTrue(waitNanos > 0 && waitNanos <= TimeUnit.SECONDS.toNanos(1), "wait " + waitNanos);
+    }
+
+    @Test
+    void refillsAtConfiguredRate() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(100, 1);
+        assertEquals(0, bucket.tryAcquire());
+        long waitNanos = bucket.tryAcquire();
+        assertTrue(waitNanos > 0 && waitNanos <= TimeUnit.MILLISECONDS.toNanos(10), "wait " + waitNanos);
+
+        TimeUnit.NANOSECONDS.sleep(waitNanos + TimeUnit.MILLISECONDS.toNanos(5));
+        assertEquals(0, bucket.tryAcquire());
+    }
+
+    @Test
+    void idleTimeDoesNotExceedCapacity() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1000, 3);
+        // 空闲了足够放50个令牌的时间, 也只攒3个
+        Thread.sleep(50);
+        int acquired = 0;
+        while (bucket.tryAcquire() == 0) {
+            acquired++;
+        }
+        assertTrue(acquired >= 3 && acquired <= 4, "acquired " + acquired);
+    }
+}
@@ -0,0 +1,422 @@
+package com.hmdp;
+
+import com.baomidou.mybatisplus.core.conditions.Wrapper;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.extension.conditions.update.UpdateChainWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.impl.VoucherOrderServiceImpl;
+import com.hmdp.utils.OrderResultStore;
+import com.hmdp.utils.OrderStreamMonitor;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.ByteRecord;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.STREAM_ORDERS_DLQ_KEY;
+import static com.hmdp.utils.RedisConstants.STREAM_ORDERS_GROUP;
+import static com.hmdp.utils.RedisConstants.STREAM_ORDERS_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * 订单消息的消费: 按优惠券分组批量写库, 整组扣库存 stock - n, 扣不下来退回一单一单处理
+ * 整批失败时逐条重试, 只有出错的那条留在pending-list; 认领超时消息、超过投递次数转入死信队列、清理闲置消费者
+ * 数据库用内存里的 FakeDb 代替: 订单表带主键和(user_id, voucher_id)唯一索引, 事务回滚时恢复快照
+ **/
+class VoucherOrderConsumerTests {
+
+    private FakeDb db;
+    private VoucherOrderServiceImpl service;
+    private OrderResultStore orderResultStore;
+    private StreamOperations<String, Object, Object> streamOperations;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        db = new FakeDb();
+        orderResultStore = mock(OrderResultStore.class);
+        streamOperations = mock(StreamOperations.class);
+        StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+        when(stringRedisTemplate.opsForStream()).thenReturn(streamOperations);
+        TransactionTemplate transactionTemplate = mock(TransactionTemplate.class);
+        when(transactionTemplate.execute(any())).thenAnswer(invocation -> db.inTransaction(invocation.getArgument(0)));
+
+        service = new VoucherOrderServiceImpl();
+        ReflectionTestUtils.setField(service, "baseMapper", db.mapper);
+        ReflectionTestUtils.setField(service, "seckillVoucherService", db.seckillVoucherService);
+        ReflectionTestUtils.setField(service, "transactionTemplate", transactionTemplate);
+        ReflectionTestUtils.setField(service, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(service, "orderResultStore", orderResultStore);
+        ReflectionTestUtils.setField(service, "orderStreamMonitor", mock(OrderStreamMonitor.class));
+        ReflectionTestUtils.setField(service, "reclaimMinIdleSeconds", 60L);
+        ReflectionTestUtils.setField(service, "maxDeliveries", 3L);
+        ReflectionTestUtils.setField(service, "reclaimConsumer", Consumer.from(STREAM_ORDERS_GROUP, "reclaim"));
+        when(streamOperations.consumers(STREAM_ORDERS_KEY, STREAM_ORDERS_GROUP))
+                .thenReturn(StreamInfo.XInfoConsumers.fromList(STREAM_ORDERS_GROUP, Collections.emptyList()));
+    }
+
+    @Test
+    void deductsStockOncePerVoucher() {
+        db.stock.put(1L, 10);
+        db.stock.put(2L, 10);
+        List<MapRecord<String, Object, Object>> records = Arrays.asList(
+                record("1-0", 11L, 1L, 1L), record("2-0", 12L, 2L, 1L),
+                record("3-0", 13L, 1L, 2L), record("4-0", 14L, 3L, 1L));
+
+        handleRecords(records);
+
+        assertEquals(Arrays.asList(
+                "stock = stock - 3, voucher_id = 1, stock >= 3",
+                "stock = stock - 1, voucher_id = 2, stock >= 1"), db.stockUpdates);
+        assertEquals(7, db.stock.get(1L));
+        assertEquals(9, db.stock.get(2L));
+        assertEquals(Arrays.asList(11L, 12L, 14L, 13L), new ArrayList<>(db.orders.keySet()));
+        verify(streamOperations).acknowledge(STREAM_ORDERS_KEY, STREAM_ORDERS_GROUP,
+                RecordId.of("1-0"), RecordId.of("2-0"), RecordId.of("3-0"), RecordId.of("4-0"));
+        verify(orderResultStore).save(orders(11L, 12L, 14L), eq(OrderResultStore.SUCCESS), isNull());
+        verify(orderResultStore).save(orders(13L), eq(OrderResultStore.SUCCESS), isNull());
+    }
+
+    @Test
+    void onlyInsertedOrdersTakeStock() {
+        db.stock.put(1L, 10);
+        db.insert(order(100L, 1L, 1L));
+        // 100: 同一条消息重复投递; 101: 用户1换了个订单id又来买; 102: 新订单
+        handleRecords(Arrays.asList(
+                record("1-0", 100L, 1L, 1L), record("2-0", 101L, 1L, 1L), record("3-0", 102L, 2L, 1L)));
+
+        assertEquals(Collections.singletonList("stock = stock - 1, voucher_id = 1, stock >= 1"), db.stockUpdates);
+        assertEquals(9, db.stock.get(1L));
+        verify(orderResultStore).save(orders(100L, 102L), eq(OrderResultStore.SUCCESS), isNull());
+        verify(orderResultStore).save(orders(101L), eq(OrderResultStore.FAILED), eq("不允许重复下单"));
+        verify(streamOperations).acknowledge(STREAM_ORDERS_KEY, STREAM_ORDERS_GROUP,
+                RecordId.of("1-0"), RecordId.of("2-0"), RecordId.of("3-0"));
+    }
+
+    @Test
+    void fallsBackToSingleOrdersWhenGroupCannotTakeStock() {
+        db.stock.put(1L, 2);
+        handleRecords(Arrays.asList(
+                record("1-0", 11L, 1L, 1L), record("2-0", 12L, 2L, 1L), record("3-0", 13L, 3L, 1L)));
+
+        assertEquals(Arrays.asList(
+                "stock = stock - 3, voucher_id = 1, stock >= 3",
+                "stock = stock - 1, voucher_id = 1, stock > 0",
+                "stock = stock - 1, voucher_id = 1, stock > 0",
+                "stock = stock - 1, voucher_id = 1, stock > 0"), db.stockUpdates);
+        assertEquals(0, db.stock.get(1L));
+        // 整组插入的和最后一单都回滚了
+        assertEquals(Arrays.asList(11L, 12L), new ArrayList<>(db.orders.keySet()));
+        verify(orderResultStore).save(order(11L, 1L, 1L), OrderResultStore.SUCCESS, null);
+        verify(orderResultStore).save(order(12L, 2L, 1L), OrderResultStore.SUCCESS, null);
+        verify(orderResultStore).save(order(13L, 3L, 1L), OrderResultStore.FAILED, "库存不足");
+        verify(streamOperations, times(1)).acknowledge(STREAM_ORDERS_KEY, STREAM_ORDERS_GROUP,
+                RecordId.of("1-0"), RecordId.of("2-0"), RecordId.of("3-0"));
+    }
+
+    @Test
+    void retriesOneByOneAndLeavesOnlyTheBadRecordPending() {
+        db.stock.put(1L, 10);
+        db.stock.put(99L, 10);
+        db.brokenVoucherId = 99L;
+        handleRecords(Arrays.asList(
+                record("1-0", 11L, 1L, 1L), record("2-0", 12L, 2L, 99L), record("3-0", 13L, 3L, 1L)));
+
+        // 整批没确认; 逐条重试时, 前面已经提交的订单按主键去重, 库存不会多扣
+        verify(streamOperations, never()).acknowledge(STREAM_ORDERS_KEY, STREAM_ORDERS_GROUP,
+                RecordId.of("1-0"), RecordId.of("2-0"), RecordId.of("3-0"));
+        verify(streamOperations).acknowledge(STREAM_ORDERS_KEY, STREAM_ORDERS_GROUP, RecordId.of("1-0"));
+        verify(streamOperations).acknowledge(STREAM_ORDERS_KEY, STREAM_ORDERS_GROUP, RecordId.of("3-0"));
+        verify(streamOperations, never()).acknowledge(STREAM_ORDERS_KEY, STREAM_ORDERS_GROUP, RecordId.of("2-0"));
+        assertEquals(8, db.stock.get(1L));
+        assertEquals(10, db.stock.get(99L));
+        assertEquals(Arrays.asList(11L, 13L), new ArrayList<>(db.orders.keySet()));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void claimsIdleMessagesUnderTheDeliveryLimit() {
+        db.stock.put(1L, 10);
+        pending(pendingMessage("1-0", 90, 2), pendingMessage("2-0", 10, 5));
+        StringRedisTemplate stringRedisTemplate = (StringRedisTemplate) ReflectionTestUtils.getField(service, "stringRedisTemplate");
+        ArgumentCaptor<RedisCallback<List<ByteRecord>>> callback = ArgumentCaptor.forClass(RedisCallback.class);
+        when(stringRedisTemplate.execute(callback.capture())).thenReturn(Collections.singletonList(byteRecord("1-0", 11L, 1L, 1L)));
+
+        ReflectionTestUtils.invokeMethod(service, "reclaimPendingOrders");
+
+        // 只认领超过60秒没确认的: XCLAIM stream.orders g1 reclaim 60000 1-0
+        RedisConnection connection = mock(RedisConnection.class);
+        RedisStreamCommands streamCommands = mock(RedisStreamCommands.class);
+        when(connection.streamCommands()).thenReturn(streamCommands);
+        callback.getValue().doInRedis(connection);
+        ArgumentCaptor<RedisStreamCommands.XClaimOptions> options = ArgumentCaptor.forClass(RedisStreamCommands.XClaimOptions.class);
+        verify(streamCommands).xClaim(aryEq(STREAM_ORDERS_KEY.getBytes(StandardCharsets.UTF_8)),
+                eq(STREAM_ORDERS_GROUP), eq("reclaim"), options.capture());
+        assertEquals(Collections.singletonList(RecordId.of("1-0")), options.getValue().getIds());
+        assertEquals(Duration.ofSeconds(60), options.getValue().getMinIdleTime());
+
+        // 认领到的照常处理; 没到时间的那条投递次数再多也不动
+        assertEquals(9, db.stock.get(1L));
+        verify(streamOperations).acknowledge(STREAM_ORDERS_KEY, STREAM_ORDERS_GROUP, RecordId.of("1-0"));
+        verify(streamOperations, never()).add(eq(STREAM_ORDERS_DLQ_KEY), anyMap());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void deadLettersMessagesOverTheDeliveryLimit() {
+        pending(pendingMessage("1-0", 90, 3));
+        when(streamOperations.range(eq(STREAM_ORDERS_KEY), any(Range.class)))
+                .thenReturn(Collections.singletonList(record("1-0", 11L, 1L, 1L)));
+
+        ReflectionTestUtils.invokeMethod(service, "reclaimPendingOrders");
+
+        ArgumentCaptor<Map<Object, Object>> body = ArgumentCaptor.forClass(Map.class);
+        verify(streamOperations).add(eq(STREAM_ORDERS_DLQ_KEY), body.capture());
+        assertEquals("11", body.getValue().get("id"));
+        assertEquals("1-0", body.getValue().get("originId"));
+        assertEquals("3", body.getValue().get("deliveries"));
+        assertEquals("c1", body.getValue().get("consumer"));
+        verify(streamOperations).acknowledge(STREAM_ORDERS_KEY, STREAM_ORDERS_GROUP, RecordId.of("1-0"));
+        verify(orderResultStore).save(order(11L, 1L, 1L), OrderResultStore.FAILED, "订单处理失败");
+        StringRedisTemplate stringRedisTemplate = (StringRedisTemplate) ReflectionTestUtils.getField(service, "stringRedisTemplate");
+        verify(stringRedisTemplate, never()).execute(any(RedisCallback.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void acknowledgesOverLimitMessageWhoseOrderIsAlreadyWritten() {
+        // 事务提交了, XACK之前挂了
+        db.insert(order(11L, 1L, 1L));
+        pending(pendingMessage("1-0", 90, 3));
+        when(streamOperations.range(eq(STREAM_ORDERS_KEY), any(Range.class)))
+                .thenReturn(Collections.singletonList(record("1-0", 11L, 1L, 1L)));
+
+        ReflectionTestUtils.invokeMethod(service, "reclaimPendingOrders");
+
+        verify(streamOperations, never()).add(eq(STREAM_ORDERS_DLQ_KEY), anyMap());
+        verify(streamOperations).acknowledge(STREAM_ORDERS_KEY, STREAM_ORDERS_GROUP, RecordId.of("1-0"));
+        verify(orderResultStore).save(order(11L, 1L, 1L), OrderResultStore.SUCCESS, null);
+    }
+
+    @Test
+    void removesOnlyIdleConsumersWithoutPendingMessages() {
+        pending();
+        long twoDays = Duration.ofDays(2).toMillis();
+        when(streamOperations.consumers(STREAM_ORDERS_KEY, STREAM_ORDERS_GROUP)).thenReturn(
+                StreamInfo.XInfoConsumers.fromList(STREAM_ORDERS_GROUP, Arrays.asList(
+                        consumer("c1", 0, twoDays), consumer("c2", 1, twoDays), consumer("c3", 0, 60_000))));
+
+        ReflectionTestUtils.invokeMethod(service, "reclaimPendingOrders");
+
+        verify(streamOperations).deleteConsumer(STREAM_ORDERS_KEY, Consumer.from(STREAM_ORDERS_GROUP, "c1"));
+        verify(streamOperations, times(1)).deleteConsumer(anyString(), any(Consumer.class));
+    }
+
+    private void handleRecords(List<MapRecord<String, Object, Object>> records) {
+        ReflectionTestUtils.invokeMethod(service, "handleRecords", records);
+    }
+
+    private static MapRecord<String, Object, Object> record(String id, Long orderId, Long userId, Long voucherId) {
+        Map<Object, Object> value = new HashMap<>();
+        value.put("id", orderId.toString());
+        value.put("userId", userId.toString());
+        value.put("voucherId", voucherId.toString());
+        return StreamRecords.newRecord().in(STREAM_ORDERS_KEY).withId(RecordId.of(id)).ofMap(value);
+    }
+
+    private void pending(PendingMessage... messages) {
+        when(streamOperations.pending(eq(STREAM_ORDERS_KEY), eq(STREAM_ORDERS_GROUP), any(Range.class), eq(100L)))
+                .thenReturn(new PendingMessages(STREAM_ORDERS_GROUP, Arrays.asList(messages)));
+    }
+
+    private static PendingMessage pendingMessage(String id, long idleSeconds, long deliveries) {
+        return new PendingMessage(RecordId.of(id), Consumer.from(STREAM_ORDERS_GROUP, "c1"),
+                Duration.ofSeconds(idleSeconds), deliveries);
+    }
+
+    /**
+     * XINFO CONSUMERS 返回的一项: name .. pending .. idle ..
+     **/
+    private static List<Object> consumer(String name, long pending, long idleMillis) {
+        return Arrays.asList("name", name, "pending", pending, "idle", idleMillis);
+    }
+
+    private static ByteRecord byteRecord(String id, Long orderId, Long userId, Long voucherId) {
+        Map<byte[], byte[]> value = new HashMap<>();
+        record(id, orderId, userId, voucherId).getValue().forEach((field, v) -> value.put(
+                field.toString().getBytes(StandardCharsets.UTF_8), v.toString().getBytes(StandardCharsets.UTF_8)));
+        return StreamRecords.rawBytes(value).withStreamKey(STREAM_ORDERS_KEY.getBytes(StandardCharsets.UTF_8))
+                .withId(RecordId.of(id));
+    }
+
+    private static VoucherOrder order(Long orderId, Long userId, Long voucherId) {
+        return new VoucherOrder().setId(orderId).setUserId(userId).setVoucherId(voucherId);
+    }
+
+    /**
+     * 按订单id比较 (保存结果时只关心是哪几单)
+     **/
+    private List<VoucherOrder> orders(Long... orderIds) {
+        List<Long> ids = Arrays.asList(orderIds);
+        return Mockito.argThat(orders -> orders != null
+                && orders.stream().map(VoucherOrder::getId).collect(Collectors.toList()).equals(ids));
+    }
+
+    /**
+     * 订单表 + 秒杀券库存, 事务回滚时恢复到开始时的样子
+     **/
+    static class FakeDb {
+
+        final Map<Long, VoucherOrder> orders = new LinkedHashMap<>();
+        final Map<Long, Integer> stock = new HashMap<>();
+        final List<String> stockUpdates = new ArrayList<>();
+        Long brokenVoucherId;   // 写这个券的订单时数据库报错
+        final VoucherOrderMapper mapper = mock(VoucherOrderMapper.class);
+        final ISeckillVoucherService seckillVoucherService = mock(ISeckillVoucherService.class);
+
+        @SuppressWarnings("unchecked")
+        FakeDb() {
+            when(mapper.insertIgnoreBatch(anyList())).thenAnswer(invocation -> {
+                int inserted = 0;
+                for (VoucherOrder order : (List<VoucherOrder>) invocation.getArgument(0)) {
+                    inserted += insert(order) ? 1 : 0;
+                }
+                return inserted;
+            });
+            // query().select("id").in("id", ids).list()  只用到in里的id
+            when(mapper.selectList(any(Wrapper.class))).thenAnswer(invocation -> {
+                QueryWrapper<VoucherOrder> wrapper = invocation.getArgument(0);
+                wrapper.getSqlSegment();   // 拼sql的时候才会把参数放进 paramNameValuePairs
+                return orders.values().stream()
+                        .filter(order -> wrapper.getParamNameValuePairs().containsValue(order.getId()))
+                        .collect(Collectors.toList());
+            });
+            when(mapper.selectById(any())).thenAnswer(invocation -> orders.get((Long) invocation.getArgument(0)));
+            when(seckillVoucherService.update()).thenAnswer(invocation -> stockUpdate());
+        }
+
+        /**
+         * INSERT IGNORE: 主键或者(user_id, voucher_id)重复就忽略
+         **/
+        boolean insert(VoucherOrder order) {
+            if (order.getVoucherId().equals(brokenVoucherId)) {
+                throw new QueryTimeoutException("voucher " + brokenVoucherId);
+            }
+            boolean duplicate = orders.containsKey(order.getId()) || orders.values().stream().anyMatch(o ->
+                    o.getUserId().equals(order.getUserId()) && o.getVoucherId().equals(order.getVoucherId()));
+            if (duplicate) {
+                return false;
+            }
+            orders.put(order.getId(), order);
+            return true;
+        }
+
+        <T> T inTransaction(TransactionCallback<T> callback) {
+            Map<Long, VoucherOrder> ordersBefore = new LinkedHashMap<>(orders);
+            Map<Long, Integer> stockBefore = new HashMap<>(stock);
+            SimpleTransactionStatus status = new SimpleTransactionStatus();
+            try {
+                T result = callback.doInTransaction(status);
+                if (status.isRollbackOnly()) {
+                    rollback(ordersBefore, stockBefore);
+                }
+                return result;
+            } catch (RuntimeException e) {
+                rollback(ordersBefore, stockBefore);
+                throw e;
+            }
+        }
+
+        private void rollback(Map<Long, VoucherOrder> ordersBefore, Map<Long, Integer> stockBefore) {
+            orders.clear();
+            orders.putAll(ordersBefore);
+            stock.clear();
+            stock.putAll(stockBefore);
+        }
+
+        /**
+         * update tb_seckill_voucher set stock = stock - n where voucher_id = ? and stock >= ? (或 stock > ?)
+         **/
+        @SuppressWarnings("unchecked")
+        private UpdateChainWrapper<SeckillVoucher> stockUpdate() {
+            Map<String, Object> conditions = new LinkedHashMap<>();
+            return mock(UpdateChainWrapper.class, invocation -> {
+                String method = invocation.getMethod().getName();
+                switch (method) {
+                    case "setSql":
+                        conditions.put(method, invocation.getArgument(0));
+                        return invocation.getMock();
+                    case "eq":
+                    case "ge":
+                    case "gt":
+                        conditions.put(method, invocation.getArgument(1));
+                        return invocation.getMock();
+                    case "update":
+                        return applyStockUpdate(conditions);
+                    default:
+                        return Mockito.RETURNS_DEFAULTS.answer(invocation);
+                }
+            });
+        }
+
+        private boolean applyStockUpdate(Map<String, Object> conditions) {
+            String sql = (String) conditions.get("setSql");
+            Long voucherId = (Long) conditions.get("eq");
+            boolean ge = conditions.containsKey("ge");
+            int bound = ((Number) conditions.get(ge ? "ge" : "gt")).intValue();
+            stockUpdates.add(sql + ", voucher_id = " + voucherId + ", stock " + (ge ? ">= " : "> ") + bound);
+
+            int n = Integer.parseInt(sql.substring(sql.lastIndexOf('-') + 1).trim());
+            int current = stock.getOrDefault(voucherId, 0);
+            if (ge ? current < bound : current <= bound) {
+                return false;
+            }
+            stock.put(voucherId, current - n);
+            return true;
+        }
+    }
+}